@@ -1,11 +1,23 @@
+import java.io.Serializable;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Implementation of a B+ tree to allow efficient access to many different
@@ -30,6 +42,31 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
 	private int branchingFactor;
 	private int count;
 
+	// Number of modifications, used by iterators to detect concurrent changes
+	private int modCount;
+
+	// Number of splits and other changes to the shape of the tree
+	private int structureVersion;
+
+	// Finger search remembers the last leaf reached and the path down to it
+	private boolean fingerSearch;
+	private LeafNode finger;
+	private List<InternalNode> fingerPath = new ArrayList<InternalNode>();
+	private List<Integer> fingerSlots = new ArrayList<Integer>();
+	private int fingerVersion;
+
+	// Appends go straight to the rightmost leaf, whose path is cached
+	private LeafNode appendLeaf;
+	private List<InternalNode> appendPath = new ArrayList<InternalNode>();
+	private int appendVersion = -1;
+
+	// True while an insert past every key of the tree may split nodes, which
+	// then keep the left node packed instead of splitting in the middle
+	private boolean appendSplit;
+
+	// Leaves store a common prefix once and only the suffixes of String keys
+	private boolean prefixCompression;
+
 	/**
 	 * Public constructor
 	 * 
@@ -43,6 +80,37 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
 		root = new LeafNode();
 	}
 
+	/**
+	 * Creates a tree of String keys whose leaves are prefix compressed. Every leaf
+	 * stores the prefix its keys have in common once, and only the rest of each
+	 * key, and the searches inside a leaf compare a key against that prefix once
+	 * before comparing suffixes. Keys with long shared prefixes, such as SKU codes
+	 * or URLs, then take much less memory per entry.
+	 * 
+	 * @param branchingFactor
+	 * @return empty tree
+	 */
+	public static <V> BPTree<String, V> withPrefixCompression(int branchingFactor) {
+		BPTree<String, V> tree = new BPTree<String, V>(branchingFactor);
+		tree.prefixCompression = true;
+		tree.root = tree.new LeafNode();
+		return tree;
+	}
+
+	/**
+	 * Turns finger search on or off. With finger search the tree remembers the
+	 * last leaf a get or insert reached. A get whose key falls inside that leaf or
+	 * one of its neighbours, and an insert that falls inside it, skip the descent
+	 * from the root, which makes lookups with sequential keys close to constant
+	 * time. The finger is dropped whenever a split changes the shape of the tree.
+	 * 
+	 * @param enabled true to turn finger search on
+	 */
+	public void setFingerSearch(boolean enabled) {
+		fingerSearch = enabled;
+		finger = null;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -50,11 +118,414 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
 	 */
 	@Override
 	public void insert(K key, V value) {
-		if (key == null) {
+		if (key == null || value == null) {
 			throw new IllegalArgumentException();
 		}
+		if (coversAppend(key) && !appendLeaf.isFull()) {
+			appendLeaf.insertAt(appendLeaf.keyNumber(), key, value);
+			for (InternalNode node : appendPath) {
+				node.counts[node.keyNumber()]++;
+			}
+			count++;
+			modCount++;
+			return;
+		}
+		if (fingerSearch) {
+			if (!fingerCoversInsert(key)) {
+				fingerSeek(key, false);
+			}
+			if (!finger.isFull()) {
+				finger.insert(key, value);
+				for (int i = 0; i < fingerPath.size(); i++) {
+					fingerPath.get(i).counts[fingerSlots.get(i)]++;
+				}
+				count++;
+				modCount++;
+				return;
+			}
+		}
 		root.insert(key, value);
+		if (root.isOverflow()) {
+			splitRoot();
+		}
 		count++;
+		modCount++;
+	}
+
+	/**
+	 * Inserts a batch of entries. The batch is sorted by key first, keeping the
+	 * order of equal keys, and then split among the children of every node on
+	 * the way down, so each leaf reached is descended to once. The entries of a
+	 * leaf are merged into it in one pass and the result is divided into as many
+	 * leaves as it needs, and every internal node takes all its new children at
+	 * once and divides itself the same way if it has too many.
+	 * 
+	 * @param entries entries to insert
+	 */
+	public void insertAll(Collection<? extends Map.Entry<K, V>> entries) {
+		List<Map.Entry<K, V>> batch = new ArrayList<Map.Entry<K, V>>(entries);
+		for (Map.Entry<K, V> entry : batch) {
+			if (entry.getKey() == null || entry.getValue() == null) {
+				throw new IllegalArgumentException();
+			}
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		batch.sort((a, b) -> a.getKey().compareTo(b.getKey()));
+
+		List<K> separators = new ArrayList<K>();
+		List<Node> siblings = new ArrayList<Node>();
+		root.insertAll(batch, 0, batch.size(), separators, siblings);
+		while (!siblings.isEmpty()) {
+			// the root was divided, put new roots above the parts until one is left
+			List<Node> nodes = new ArrayList<Node>();
+			List<Integer> sizes = new ArrayList<Integer>();
+			nodes.add(root);
+			nodes.addAll(siblings);
+			for (Node node : nodes) {
+				sizes.add(node.subtreeSize());
+			}
+			List<K> keys = separators;
+			InternalNode newRoot = new InternalNode();
+			separators = new ArrayList<K>();
+			siblings = new ArrayList<Node>();
+			newRoot.adopt(nodes, keys, sizes, separators, siblings);
+			root = newRoot;
+		}
+		count += batch.size();
+		modCount++;
+		structureVersion++;
+	}
+
+	/**
+	 * Splits the root and puts a new root above the two halves, growing the tree
+	 * by one level
+	 */
+	private void splitRoot() {
+		Node left = root;
+		Node sibling = left.split();
+		InternalNode newRoot = new InternalNode();
+		newRoot.keys[0] = left.takeSeparator(sibling);
+		newRoot.keyCount = 1;
+		newRoot.children[0] = left;
+		newRoot.children[1] = sibling;
+		newRoot.counts[0] = left.subtreeSize();
+		newRoot.counts[1] = sibling.subtreeSize();
+		root = newRoot;
+		structureVersion++;
+	}
+
+	/**
+	 * Loads an empty tree from entries sorted by key, much faster than inserting
+	 * them one by one. The leaves are packed in sequence and linked as they are
+	 * filled, then every level of internal nodes is built on top of the one below
+	 * it, without any descent, search or split. Nodes are filled to the given
+	 * fraction of their capacity, but never below the half a node keeps after a
+	 * split; a fill factor below 1 leaves room for later inserts.
+	 * 
+	 * @param entries    entries in ascending key order, equal keys in the order
+	 *                   they are to be kept
+	 * @param fillFactor fraction of each node to fill, greater than 0 and at most
+	 *                   1
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries, double fillFactor) {
+		int perNode = loadLength(fillFactor);
+
+		List<Node> leaves = new ArrayList<Node>();
+		LeafNode leaf = new LeafNode();
+		leaves.add(leaf);
+		K last = null;
+		int loaded = 0;
+		while (entries.hasNext()) {
+			Map.Entry<K, V> entry = entries.next();
+			K key = entry.getKey();
+			if (key == null || entry.getValue() == null) {
+				throw new IllegalArgumentException();
+			}
+			if (last != null && last.compareTo(key) > 0) {
+				throw new IllegalArgumentException("Entries are not sorted: " + key + " after " + last);
+			}
+			if (leaf.keyNumber() == perNode) {
+				LeafNode sibling = new LeafNode();
+				sibling.previous = leaf;
+				leaf.next = sibling;
+				leaf.compressPrefix();
+				leaf = sibling;
+				leaves.add(leaf);
+			}
+			leaf.insertAt(leaf.keyNumber(), key, entry.getValue());
+			last = key;
+			loaded++;
+		}
+		leaf.compressPrefix();
+		if (leaves.size() > 1 && leaf.isUnderflow()) {
+			// the last leaf is short, share the entries of the last two leaves
+			LeafNode previous = leaf.previous;
+			int total = previous.keyNumber() + leaf.keyNumber();
+			if (total <= branchingFactor) {
+				previous.merge(null, leaf);
+				leaves.remove(leaves.size() - 1);
+			} else {
+				while (leaf.keyNumber() < total - total / 2) {
+					leaf.shiftFromLeft(null, previous);
+				}
+			}
+		}
+
+		root = buildIndex((Node[]) leaves.toArray(new BPTree.Node[leaves.size()]), false, perNode);
+		count = loaded;
+		finger = null;
+		modCount++;
+		structureVersion++;
+	}
+
+	/**
+	 * Loads an empty tree from entries in any order using every core. The entries
+	 * are sorted with a parallel merge sort, which keeps equal keys in the order
+	 * of the collection, then the leaves of disjoint runs of entries are filled by
+	 * separate fork-join workers, and so are the internal nodes of every level
+	 * above them. Only the stitching of the leaf chain and the group boundaries
+	 * are worked out up front, so the workers share nothing.
+	 * 
+	 * @see BPTree#bulkLoad(Iterator, double)
+	 * 
+	 * @param entries    entries to load
+	 * @param fillFactor fraction of each node to fill, greater than 0 and at most
+	 *                   1
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void parallelLoad(Collection<? extends Map.Entry<K, V>> entries, double fillFactor) {
+		int perNode = loadLength(fillFactor);
+		Map.Entry<K, V>[] sorted = entries.toArray(new Map.Entry[0]);
+		for (Map.Entry<K, V> entry : sorted) {
+			if (entry.getKey() == null || entry.getValue() == null) {
+				throw new IllegalArgumentException();
+			}
+		}
+		Arrays.parallelSort(sorted, (a, b) -> a.getKey().compareTo(b.getKey()));
+
+		List<Integer> lengths = runLengths(sorted.length, perNode, (branchingFactor + 1) / 2);
+		int[] starts = new int[lengths.size()];
+		for (int i = 1; i < starts.length; i++) {
+			starts[i] = starts[i - 1] + lengths.get(i - 1);
+		}
+		Node[] leaves = (Node[]) new BPTree.Node[Math.max(1, lengths.size())];
+		IntStream.range(0, lengths.size()).parallel().forEach(i -> {
+			LeafNode leaf = new LeafNode();
+			for (int j = starts[i]; j < starts[i] + lengths.get(i); j++) {
+				leaf.insertAt(leaf.keyNumber(), sorted[j].getKey(), sorted[j].getValue());
+			}
+			leaf.compressPrefix();
+			leaves[i] = leaf;
+		});
+		if (lengths.isEmpty()) {
+			leaves[0] = new LeafNode();
+		}
+		IntStream.range(1, leaves.length).parallel().forEach(i -> {
+			((LeafNode) leaves[i - 1]).next = (LeafNode) leaves[i];
+			((LeafNode) leaves[i]).previous = (LeafNode) leaves[i - 1];
+		});
+
+		root = buildIndex(leaves, true, perNode);
+		count = sorted.length;
+		finger = null;
+		modCount++;
+		structureVersion++;
+	}
+
+	/**
+	 * Checks that a tree can be loaded and gets the number of keys or children
+	 * to put in each node
+	 * 
+	 * @param fillFactor fraction of each node to fill
+	 * @return length of a node
+	 */
+	private int loadLength(double fillFactor) {
+		if (!(fillFactor > 0 && fillFactor <= 1)) {
+			throw new IllegalArgumentException("Illegal fill factor: " + fillFactor);
+		}
+		if (count > 0) {
+			throw new IllegalStateException("Tree is not empty");
+		}
+		return Math.max((branchingFactor + 1) / 2, (int) Math.round(branchingFactor * fillFactor));
+	}
+
+	/**
+	 * Builds the internal levels over a run of linked leaves, each level on top of
+	 * the one below it. The separator between two groups of children moves up a
+	 * level, as it would in a split.
+	 * 
+	 * @param leaves   leaves in key order
+	 * @param parallel true to build the nodes of each level on fork-join workers
+	 * @param perNode  number of children to put in each internal node
+	 * @return root of the tree
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Node buildIndex(Node[] leaves, boolean parallel, int perNode) {
+		// separators[i] goes between nodes i and i + 1 of the level
+		K[] leafSeparators = newKeys(leaves.length - 1);
+		int[] leafSizes = new int[leaves.length];
+		IntStream range = IntStream.range(0, leaves.length);
+		(parallel ? range.parallel() : range).forEach(i -> {
+			if (i > 0) {
+				leafSeparators[i - 1] = leaves[i - 1].takeSeparator(leaves[i]);
+			}
+			leafSizes[i] = leaves[i].subtreeSize();
+		});
+
+		Node[] level = leaves;
+		K[] separators = leafSeparators;
+		int[] sizes = leafSizes;
+		int minChildren = (branchingFactor + 1) / 2;
+		while (level.length > 1) {
+			List<Integer> lengths = runLengths(level.length, perNode, minChildren);
+			int[] starts = new int[lengths.size()];
+			for (int i = 1; i < starts.length; i++) {
+				starts[i] = starts[i - 1] + lengths.get(i - 1);
+			}
+			Node[] children = level;
+			K[] childSeparators = separators;
+			int[] childSizes = sizes;
+			Node[] parents = (Node[]) new BPTree.Node[lengths.size()];
+			K[] parentSeparators = newKeys(parents.length - 1);
+			int[] parentSizes = new int[parents.length];
+			range = IntStream.range(0, parents.length);
+			(parallel ? range.parallel() : range).forEach(g -> {
+				InternalNode parent = new InternalNode();
+				int from = starts[g];
+				int length = lengths.get(g);
+				System.arraycopy(children, from, parent.children, 0, length);
+				System.arraycopy(childSizes, from, parent.counts, 0, length);
+				System.arraycopy(childSeparators, from, parent.keys, 0, length - 1);
+				parent.keyCount = length - 1;
+				if (g < parents.length - 1) {
+					parentSeparators[g] = childSeparators[from + length - 1];
+				}
+				parents[g] = parent;
+				parentSizes[g] = parent.subtreeSize();
+			});
+			level = parents;
+			separators = parentSeparators;
+			sizes = parentSizes;
+		}
+		return level[0];
+	}
+
+	/**
+	 * Divides a run of nodes into groups of the given length, the last group being
+	 * shared with the one before it if it would fall below the minimum length
+	 * 
+	 * @param total   number of nodes
+	 * @param length  preferred length of a group
+	 * @param minimum smallest length of a group, unless there is only one
+	 * @return lengths of the groups
+	 */
+	private List<Integer> runLengths(int total, int length, int minimum) {
+		List<Integer> lengths = new ArrayList<Integer>();
+		for (int left = total; left > 0; left -= length) {
+			lengths.add(Math.min(left, length));
+		}
+		int n = lengths.size();
+		if (n > 1 && lengths.get(n - 1) < minimum) {
+			int shared = lengths.remove(n - 1) + lengths.remove(n - 2);
+			if (shared <= branchingFactor) {
+				lengths.add(shared);
+			} else {
+				lengths.add(shared / 2);
+				lengths.add(shared - shared / 2);
+			}
+		}
+		return lengths;
+	}
+
+	/**
+	 * Checks if the key is equal to or greater than every key of the tree, in
+	 * which case it is appended to the rightmost leaf without a descent. The path
+	 * down the right edge of the tree is only walked again after its shape has
+	 * changed, so a run of increasing keys costs O(1) amortized per insert.
+	 * 
+	 * @param key
+	 * @return boolean
+	 */
+	private boolean coversAppend(K key) {
+		if (appendVersion != structureVersion || appendLeaf == null) {
+			appendPath.clear();
+			Node node = root;
+			while (node instanceof BPTree.InternalNode) {
+				InternalNode internal = (InternalNode) node;
+				appendPath.add(internal);
+				node = internal.children[internal.keyNumber()];
+			}
+			appendLeaf = (LeafNode) node;
+			appendVersion = structureVersion;
+		}
+		return appendLeaf.keyNumber() == 0 || appendLeaf.compareKey(appendLeaf.keyNumber() - 1, key) <= 0;
+	}
+
+	/**
+	 * Descends from the root and moves the finger to the leaf reached, recording
+	 * the internal nodes and child positions on the way.
+	 * 
+	 * @param key
+	 * @param lower true to descend to the first key equal to or greater than the
+	 *              key, false to descend the way insert does
+	 */
+	private void fingerSeek(K key, boolean lower) {
+		fingerPath.clear();
+		fingerSlots.clear();
+		Node node = root;
+		while (node instanceof BPTree.InternalNode) {
+			InternalNode internal = (InternalNode) node;
+			int index = lower ? internal.lowerBound(key) : internal.upperBound(key);
+			fingerPath.add(internal);
+			fingerSlots.add(index);
+			node = internal.children[index];
+		}
+		finger = (LeafNode) node;
+		fingerVersion = structureVersion;
+	}
+
+	/**
+	 * Checks if the key can be inserted into the finger leaf without a descent.
+	 * That is the case when the key lies within the keys the leaf already holds,
+	 * or beyond them on a side where the leaf has no neighbour.
+	 * 
+	 * @param key
+	 * @return boolean
+	 */
+	private boolean fingerCoversInsert(K key) {
+		if (finger == null || fingerVersion != structureVersion) {
+			return false;
+		}
+		if (finger.previous != null && finger.compareKey(0, key) > 0) {
+			return false;
+		}
+		return finger.next == null || finger.compareKey(finger.keyNumber() - 1, key) > 0;
+	}
+
+	/**
+	 * Gets the leaf holding the first key equal to or greater than the given key,
+	 * trying the finger leaf and its neighbours before descending from the root.
+	 * 
+	 * @param key
+	 * @return LeafNode
+	 */
+	private LeafNode fingerLeaf(K key) {
+		if (finger != null && fingerVersion == structureVersion) {
+			if (finger.holdsLowerBound(key)) {
+				return finger;
+			}
+			if (finger.next != null && finger.next.holdsLowerBound(key)) {
+				return finger.next;
+			}
+			if (finger.previous != null && finger.previous.holdsLowerBound(key)) {
+				return finger.previous;
+			}
+		}
+		fingerSeek(key, true);
+		return finger;
 	}
 
 	/*
@@ -69,436 +540,2516 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
 		return root.rangeSearch(key, comparator);
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Returns the values whose keys lie between the two bounds, in key order. The
+	 * search seeks to the leaf of the lower bound and follows the next links until
+	 * a key passes the upper bound, so its cost scales with the number of matches
+	 * rather than with the size of the tree.
 	 * 
-	 * @see BPTreeADT#get(java.lang.Object)
+	 * @param lo          lower bound of the keys
+	 * @param loInclusive true if keys equal to lo are included
+	 * @param hi          upper bound of the keys
+	 * @param hiInclusive true if keys equal to hi are included
+	 * @return list of values, empty if lo is greater than hi
 	 */
-	@Override
-	public V get(K key) {
-		return root.getValue(key);
+	public List<V> rangeSearch(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		if (lo == null || hi == null) {
+			throw new IllegalArgumentException();
+		}
+		if (lo.compareTo(hi) > 0) {
+			return new ArrayList<V>();
+		}
+		return root.rangeSearch(lo, loInclusive, hi, hiInclusive);
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Returns the number of keys between the two bounds without visiting the
+	 * entries. Every internal node keeps the number of entries below each of its
+	 * children, so the count is found with two root-to-leaf descents.
 	 * 
-	 * @see BPTreeADT#size()
+	 * @param lo          lower bound of the keys, or null for no lower bound
+	 * @param loInclusive true if keys equal to lo are counted
+	 * @param hi          upper bound of the keys, or null for no upper bound
+	 * @param hiInclusive true if keys equal to hi are counted
+	 * @return number of keys in the range
 	 */
-	@Override
-	public int size() {
-		return count;
+	public int rangeCount(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		int below = lo == null ? 0 : countBelow(lo, !loInclusive);
+		int upTo = hi == null ? count : countBelow(hi, hiInclusive);
+		return Math.max(0, upTo - below);
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Returns the number of keys that are strictly less than the given key, which
+	 * is also the position the key has (or would have) in key order.
 	 * 
-	 * @see java.lang.Object#toString()
+	 * @param key
+	 * @return rank of the key
 	 */
-	@Override
-	public String toString() {
-		Queue<List<Node>> queue = new LinkedList<List<Node>>();
-		queue.add(Arrays.asList(root));
-		StringBuilder sb = new StringBuilder();
-		while (!queue.isEmpty()) {
-			Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
-			while (!queue.isEmpty()) {
-				List<Node> nodes = queue.remove();
-				sb.append('{');
-				Iterator<Node> it = nodes.iterator();
-				while (it.hasNext()) {
-					Node node = it.next();
-					sb.append(node.toString());
-					if (it.hasNext())
-						sb.append(", ");
-					if (node instanceof BPTree.InternalNode)
-						nextQueue.add(((InternalNode) node).children);
-				}
-				sb.append('}');
-				if (!queue.isEmpty())
-					sb.append(", ");
-				else {
-					sb.append('\n');
+	public int rank(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException();
+		}
+		return countBelow(key, false);
+	}
+
+	/**
+	 * Returns the entry at the given position in key order, the smallest key being
+	 * at position 0. The descent skips whole subtrees using their counts, so this
+	 * takes one root-to-leaf descent.
+	 * 
+	 * @param k position of the entry
+	 * @return entry with the k-th smallest key
+	 */
+	public Map.Entry<K, V> select(int k) {
+		if (k < 0 || k >= count) {
+			throw new IllegalArgumentException("Illegal position: " + k);
+		}
+		Node node = root;
+		while (node instanceof BPTree.InternalNode) {
+			InternalNode internal = (InternalNode) node;
+			int index = 0;
+			while (k >= internal.counts[index]) {
+				k -= internal.counts[index];
+				index++;
+			}
+			node = internal.children[index];
+		}
+		return entryAt((LeafNode) node, k);
+	}
+
+	/**
+	 * Returns the entry with the smallest key, or null if the tree is empty.
+	 * 
+	 * @return entry
+	 */
+	public Map.Entry<K, V> firstEntry() {
+		return entryAt(seekLeaf(null, true), 0);
+	}
+
+	/**
+	 * Returns the entry with the greatest key, or null if the tree is empty.
+	 * 
+	 * @return entry
+	 */
+	public Map.Entry<K, V> lastEntry() {
+		LeafNode leaf = seekLeafBackward(null, true);
+		return entryAt(leaf, leaf.keyNumber() - 1);
+	}
+
+	/**
+	 * Returns the entry with the greatest key less than or equal to the given key,
+	 * or null if there is none. Of several equal keys the last one is returned.
+	 * 
+	 * @param key
+	 * @return entry
+	 */
+	public Map.Entry<K, V> floorEntry(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException();
+		}
+		LeafNode leaf = seekLeafBackward(key, true);
+		return entryAt(leaf, leaf.upperBound(key) - 1);
+	}
+
+	/**
+	 * Returns the entry with the greatest key strictly less than the given key, or
+	 * null if there is none. Of several equal keys the last one is returned.
+	 * 
+	 * @param key
+	 * @return entry
+	 */
+	public Map.Entry<K, V> lowerEntry(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException();
+		}
+		LeafNode leaf = seekLeafBackward(key, false);
+		return entryAt(leaf, leaf.lowerBound(key) - 1);
+	}
+
+	/**
+	 * Returns the entry with the smallest key greater than or equal to the given
+	 * key, or null if there is none. Of several equal keys the first one is
+	 * returned.
+	 * 
+	 * @param key
+	 * @return entry
+	 */
+	public Map.Entry<K, V> ceilingEntry(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException();
+		}
+		LeafNode leaf = seekLeaf(key, true);
+		return entryAt(leaf, leaf.lowerBound(key));
+	}
+
+	/**
+	 * Returns the entry with the smallest key strictly greater than the given key,
+	 * or null if there is none. Of several equal keys the first one is returned.
+	 * 
+	 * @param key
+	 * @return entry
+	 */
+	public Map.Entry<K, V> higherEntry(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException();
+		}
+		LeafNode leaf = seekLeaf(key, false);
+		return entryAt(leaf, leaf.upperBound(key));
+	}
+
+	/**
+	 * Gets the entry at a position of a leaf reached by a descent. A descent can
+	 * end one position before the start or after the end of its leaf, in which
+	 * case the entry is the last one of the previous leaf or the first one of the
+	 * next leaf.
+	 * 
+	 * @param leaf
+	 * @param index position in the leaf, from -1 to keyNumber()
+	 * @return entry, or null if there is none at the position
+	 */
+	private Map.Entry<K, V> entryAt(LeafNode leaf, int index) {
+		if (index < 0) {
+			leaf = leaf.previous;
+			index = leaf == null ? 0 : leaf.keyNumber() - 1;
+		} else if (index >= leaf.keyNumber()) {
+			leaf = leaf.next;
+			index = 0;
+		}
+		if (leaf == null || index < 0 || index >= leaf.keyNumber()) {
+			return null;
+		}
+		return new AbstractMap.SimpleImmutableEntry<K, V>(leaf.key(index), leaf.values[index]);
+	}
+
+	/**
+	 * Returns a page of at most limit values in key order, starting where the given
+	 * cursor left off, together with the cursor of the next page. The cursor
+	 * records the last key of the page and how many entries with that key have
+	 * been returned, so a page resumes with a descent to that position instead of
+	 * rescanning the earlier pages.
+	 * 
+	 * @param from  cursor returned with the previous page, or null for the first
+	 *              page
+	 * @param limit maximum number of values in the page
+	 * @return Page
+	 */
+	public Page<K, V> scan(Cursor<K> from, int limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("Illegal limit: " + limit);
+		}
+		K lastKey = null;
+		int ordinal = 0;
+		int position = 0;
+		if (from != null) {
+			lastKey = from.key;
+			ordinal = from.ordinal;
+			// entries of the cursor's key removed since the last page must not make
+			// the ordinal skip past the keys after it
+			position = Math.min(countBelow(from.key, false) + from.ordinal, countBelow(from.key, true));
+		}
+		List<V> values = new ArrayList<V>();
+		if (position >= count) {
+			return new Page<K, V>(values, null);
+		}
+
+		// descend to the entry at the position of the cursor
+		Node node = root;
+		while (node instanceof BPTree.InternalNode) {
+			InternalNode internal = (InternalNode) node;
+			int index = 0;
+			while (position >= internal.counts[index]) {
+				position -= internal.counts[index];
+				index++;
+			}
+			node = internal.children[index];
+		}
+		LeafNode leaf = (LeafNode) node;
+		int index = position;
+		// the last key is kept as a position and only built for the cursor
+		LeafNode lastLeaf = null;
+		int lastIndex = 0;
+		while (leaf != null && values.size() < limit) {
+			for (; index < leaf.keyNumber() && values.size() < limit; index++) {
+				boolean same = lastLeaf != null ? leaf.sameKey(index, lastLeaf, lastIndex)
+						: lastKey != null && leaf.compareKey(index, lastKey) == 0;
+				ordinal = same ? ordinal + 1 : 1;
+				lastLeaf = leaf;
+				lastIndex = index;
+				values.add(leaf.values[index]);
+			}
+			if (index >= leaf.keyNumber()) {
+				leaf = leaf.next;
+				index = 0;
+			}
+		}
+		if (lastLeaf != null) {
+			lastKey = lastLeaf.key(lastIndex);
+		}
+		return new Page<K, V>(values, leaf == null ? null : new Cursor<K>(lastKey, ordinal));
+	}
+
+	/**
+	 * Counts the keys that are less than (or equal to) the given key by summing the
+	 * subtree counts to the left of the descent path.
+	 * 
+	 * @param key
+	 * @param inclusive true to also count the keys equal to the key
+	 * @return number of keys
+	 */
+	private int countBelow(K key, boolean inclusive) {
+		int result = 0;
+		Node node = root;
+		while (node instanceof BPTree.InternalNode) {
+			InternalNode internal = (InternalNode) node;
+			int index = inclusive ? internal.upperBound(key) : internal.lowerBound(key);
+			for (int i = 0; i < index; i++) {
+				result += internal.counts[i];
+			}
+			node = internal.children[index];
+		}
+		return result + (inclusive ? node.upperBound(key) : node.lowerBound(key));
+	}
+
+	/**
+	 * Returns an iterator over the values whose keys lie between the two bounds,
+	 * in key order. Nothing is collected up front: the iterator keeps a single
+	 * position in the leaf chain and moves along the next links as it is
+	 * consumed, so callers that stop early only pay for what they read. The
+	 * iterator fails fast if the tree is modified while it is in use.
+	 * 
+	 * @param lo          lower bound of the keys, or null for no lower bound
+	 * @param loInclusive true if keys equal to lo are included
+	 * @param hi          upper bound of the keys, or null for no upper bound
+	 * @param hiInclusive true if keys equal to hi are included
+	 * @return iterator over the values
+	 */
+	public Iterator<V> rangeIterator(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		return new RangeIterator(lo, loInclusive, hi, hiInclusive, null);
+	}
+
+	/**
+	 * Returns the values of all keys that start with the given prefix, in key
+	 * order. The scan seeks to the prefix, which sorts before every key that
+	 * extends it, and stops at the first key that no longer starts with it.
+	 * 
+	 * @see CompositeKey
+	 * 
+	 * @param prefix key of the leading columns, which must be PrefixComparable
+	 * @return list of the values
+	 */
+	public List<V> prefixSearch(K prefix) {
+		List<V> result = new ArrayList<V>();
+		Iterator<V> iterator = prefixIterator(prefix);
+		while (iterator.hasNext()) {
+			result.add(iterator.next());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns an iterator over the values of all keys that start with the given
+	 * prefix, in key order. The iterator fails fast if the tree is modified while
+	 * it is in use.
+	 * 
+	 * @see BPTree#prefixSearch(Comparable)
+	 * 
+	 * @param prefix key of the leading columns, which must be PrefixComparable
+	 * @return iterator over the values
+	 */
+	public Iterator<V> prefixIterator(K prefix) {
+		if (!(prefix instanceof PrefixComparable)) {
+			throw new IllegalArgumentException();
+		}
+		return new RangeIterator(prefix, true, null, true, prefix);
+	}
+
+	/**
+	 * Returns a lazy stream over the values whose keys lie between the two bounds,
+	 * in key order. The stream can be made parallel: its spliterator splits the
+	 * range on the children boundaries of the internal nodes, so every worker
+	 * scans a disjoint run of subtrees.
+	 * 
+	 * @see BPTree#rangeIterator(Comparable, boolean, Comparable, boolean)
+	 * 
+	 * @param lo          lower bound of the keys, or null for no lower bound
+	 * @param loInclusive true if keys equal to lo are included
+	 * @param hi          upper bound of the keys, or null for no upper bound
+	 * @param hiInclusive true if keys equal to hi are included
+	 * @return stream of the values
+	 */
+	public Stream<V> rangeStream(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		List<Node> nodes = new ArrayList<Node>();
+		nodes.add(root);
+		List<Integer> sizes = new ArrayList<Integer>();
+		sizes.add(count);
+		long estimate = rangeCount(lo, loInclusive, hi, hiInclusive);
+		return StreamSupport.stream(new RangeSpliterator(nodes, sizes, lo, loInclusive, hi, hiInclusive, estimate),
+				false);
+	}
+
+	/**
+	 * Returns an iterator over all values in descending key order.
+	 * 
+	 * @return iterator over the values
+	 */
+	public Iterator<V> descendingIterator() {
+		return new DescendingRangeIterator(null, true, null, true);
+	}
+
+	/**
+	 * Returns an iterator over the values whose keys lie between the two bounds,
+	 * in descending key order. It seeks to the upper bound and walks the previous
+	 * links as it is consumed, so reading the last n entries of a range costs a
+	 * descent plus n steps. The iterator fails fast if the tree is modified while
+	 * it is in use.
+	 * 
+	 * @param lo          lower bound of the keys, or null for no lower bound
+	 * @param loInclusive true if keys equal to lo are included
+	 * @param hi          upper bound of the keys, or null for no upper bound
+	 * @param hiInclusive true if keys equal to hi are included
+	 * @return iterator over the values
+	 */
+	public Iterator<V> descendingRangeIterator(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		return new DescendingRangeIterator(lo, loInclusive, hi, hiInclusive);
+	}
+
+	/**
+	 * Returns a lazy stream over the values whose keys lie between the two bounds,
+	 * in descending key order.
+	 * 
+	 * @see BPTree#descendingRangeIterator(Comparable, boolean, Comparable,
+	 *      boolean)
+	 * 
+	 * @param lo          lower bound of the keys, or null for no lower bound
+	 * @param loInclusive true if keys equal to lo are included
+	 * @param hi          upper bound of the keys, or null for no upper bound
+	 * @param hiInclusive true if keys equal to hi are included
+	 * @return stream of the values
+	 */
+	public Stream<V> descendingRangeStream(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		Spliterator<V> spliterator = Spliterators.spliteratorUnknownSize(
+				descendingRangeIterator(lo, loInclusive, hi, hiInclusive), Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false);
+	}
+
+	/**
+	 * Creates an array for the keys of a node. K is erased to Comparable, so the
+	 * array never leaves the tree as anything else.
+	 * 
+	 * @param length
+	 * @return array of keys
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private K[] newKeys(int length) {
+		return (K[]) new Comparable[length];
+	}
+
+	/**
+	 * Descends from the root to the leaf where a scan from the given key starts.
+	 * 
+	 * @param key       key to seek to, or null for the first leaf
+	 * @param inclusive true to seek to the first key equal to or greater than the
+	 *                  key, false to seek past the keys equal to it
+	 * @return LeafNode
+	 */
+	private LeafNode seekLeaf(K key, boolean inclusive) {
+		Node node = root;
+		while (node instanceof BPTree.InternalNode) {
+			InternalNode internal = (InternalNode) node;
+			if (key == null) {
+				node = internal.children[0];
+			} else {
+				node = inclusive ? internal.getLowerChildOfNode(key) : internal.getChildOfNode(key);
+			}
+		}
+		return (LeafNode) node;
+	}
+
+	/**
+	 * Descends from the root to the leaf where a reverse scan from the given key
+	 * starts.
+	 * 
+	 * @param key       key to seek to, or null for the last leaf
+	 * @param inclusive true to seek to the last key equal to or less than the key,
+	 *                  false to seek before the keys equal to it
+	 * @return LeafNode
+	 */
+	private LeafNode seekLeafBackward(K key, boolean inclusive) {
+		Node node = root;
+		while (node instanceof BPTree.InternalNode) {
+			InternalNode internal = (InternalNode) node;
+			if (key == null) {
+				node = internal.children[internal.keyNumber()];
+			} else {
+				node = inclusive ? internal.getChildOfNode(key) : internal.getLowerChildOfNode(key);
+			}
+		}
+		return (LeafNode) node;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see BPTreeADT#get(java.lang.Object)
+	 */
+	@Override
+	public V get(K key) {
+		if (fingerSearch) {
+			return fingerLeaf(key).firstValue(key);
+		}
+		return root.getValue(key);
+	}
+
+	/**
+	 * Returns the values of all entries with the given key, in insertion order.
+	 * The search seeks to the first occurrence of the key and walks the next links
+	 * until the key changes, so duplicates spread over several leaves cost
+	 * O(log N + d) for d duplicates.
+	 * 
+	 * @param key
+	 * @return list of values, empty if the key is not found
+	 */
+	public List<V> getAll(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException();
+		}
+		return root.rangeSearch(key, "==");
+	}
+
+	/**
+	 * Looks up a batch of keys. The keys are visited in sorted order (they are
+	 * sorted first unless they already are) and the lookups share their descent:
+	 * the path from the root is kept together with the upper key bound of every
+	 * node on it, a key that still falls inside the current leaf is searched
+	 * there directly, and any other key re-descends only from the lowest ancestor
+	 * whose bound covers it.
+	 * 
+	 * @param keys keys to look up
+	 * @return values in the order of the keys, null for keys that are not found
+	 */
+	public List<V> getAll(Collection<K> keys) {
+		List<K> keyList = new ArrayList<K>(keys);
+		Integer[] order = new Integer[keyList.size()];
+		boolean sorted = true;
+		for (int i = 0; i < order.length; i++) {
+			if (keyList.get(i) == null) {
+				throw new IllegalArgumentException();
+			}
+			order[i] = i;
+			if (i > 0 && keyList.get(i - 1).compareTo(keyList.get(i)) > 0) {
+				sorted = false;
+			}
+		}
+		if (!sorted) {
+			Arrays.sort(order, (a, b) -> keyList.get(a).compareTo(keyList.get(b)));
+		}
+
+		List<V> result = new ArrayList<V>(Collections.nCopies(order.length, (V) null));
+		// internal nodes from the root down to the current leaf, with their bounds
+		List<InternalNode> path = new ArrayList<InternalNode>();
+		List<K> highs = new ArrayList<K>();
+		LeafNode leaf = null;
+		K leafHigh = null;
+		for (int i : order) {
+			K key = keyList.get(i);
+			if (leaf == null || (leafHigh != null && key.compareTo(leafHigh) > 0)) {
+				while (!path.isEmpty() && highs.get(highs.size() - 1) != null
+						&& key.compareTo(highs.get(highs.size() - 1)) > 0) {
+					path.remove(path.size() - 1);
+					highs.remove(highs.size() - 1);
+				}
+				Node node = root;
+				K high = null;
+				if (!path.isEmpty()) {
+					node = path.remove(path.size() - 1);
+					high = highs.remove(highs.size() - 1);
+				}
+				while (node instanceof BPTree.InternalNode) {
+					InternalNode internal = (InternalNode) node;
+					path.add(internal);
+					highs.add(high);
+					int index = internal.lowerBound(key);
+					if (index < internal.keyNumber()) {
+						high = internal.keys[index];
+					}
+					node = internal.children[index];
+				}
+				leaf = (LeafNode) node;
+				leafHigh = high;
+			}
+
+			result.set(i, leaf.firstValue(key));
+		}
+		return result;
+	}
+
+	/**
+	 * Removes the first entry with the given key. A node left with fewer than
+	 * half its capacity borrows an entry from its previous or next sibling if
+	 * that one can spare it, or is merged with it otherwise, and the root is
+	 * dropped once it has a single child, so the tree stays compact under churn.
+	 * 
+	 * @param key
+	 * @return value of the removed entry, or null if the key is not found
+	 */
+	public V remove(K key) {
+		return removeEntry(key, null);
+	}
+
+	/**
+	 * Removes the first entry with the given key and value. Duplicates of the key
+	 * are walked in insertion order until the value is found.
+	 * 
+	 * @see BPTree#remove(Comparable)
+	 * 
+	 * @param key
+	 * @param value
+	 * @return true if an entry was removed
+	 */
+	public boolean remove(K key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException();
+		}
+		return removeEntry(key, value) != null;
+	}
+
+	/**
+	 * Finds the first entry with the given key, and value if there is one, and
+	 * removes it, rebalancing the nodes on the path up from its leaf.
+	 * 
+	 * @param key
+	 * @param value value to match, or null for any value
+	 * @return value of the removed entry, or null if none matched
+	 */
+	private V removeEntry(K key, V value) {
+		if (key == null) {
+			throw new IllegalArgumentException();
+		}
+		List<InternalNode> path = new ArrayList<InternalNode>();
+		List<Integer> slots = new ArrayList<Integer>();
+		Node node = root;
+		while (node instanceof BPTree.InternalNode) {
+			InternalNode internal = (InternalNode) node;
+			int index = internal.lowerBound(key);
+			path.add(internal);
+			slots.add(index);
+			node = internal.children[index];
+		}
+		LeafNode leaf = (LeafNode) node;
+		int index = leaf.lowerBound(key);
+		while (true) {
+			if (index == leaf.keyNumber()) {
+				leaf = nextLeafOnPath(path, slots);
+				index = 0;
+				if (leaf == null) {
+					return null;
+				}
+			} else if (leaf.compareKey(index, key) != 0) {
+				return null;
+			} else if (value == null || value.equals(leaf.values[index])) {
+				break;
+			} else {
+				index++;
+			}
+		}
+
+		V removed = leaf.values[index];
+		leaf.removeAt(index);
+		for (int i = 0; i < path.size(); i++) {
+			path.get(i).counts[slots.get(i)]--;
+		}
+		for (int i = path.size() - 1; i >= 0; i--) {
+			InternalNode parent = path.get(i);
+			if (!parent.children[slots.get(i)].isUnderflow()) {
+				break;
+			}
+			parent.rebalanceChild(slots.get(i));
+		}
+		if (root instanceof BPTree.InternalNode && root.keyNumber() == 0) {
+			root = ((InternalNode) root).children[0];
+			structureVersion++;
+		}
+		count--;
+		modCount++;
+		return removed;
+	}
+
+	/**
+	 * Moves a path from the root to the next leaf, keeping the internal nodes and
+	 * child positions on it in step with the leaf chain.
+	 * 
+	 * @param path  internal nodes from the root down
+	 * @param slots position of the child taken in each of them
+	 * @return next leaf, or null if the path ends at the last one
+	 */
+	private LeafNode nextLeafOnPath(List<InternalNode> path, List<Integer> slots) {
+		int level = path.size() - 1;
+		while (level >= 0 && slots.get(level) == path.get(level).keyNumber()) {
+			level--;
+		}
+		if (level < 0) {
+			return null;
+		}
+		slots.set(level, slots.get(level) + 1);
+		Node node = path.get(level).children[slots.get(level)];
+		while (path.size() > level + 1) {
+			path.remove(path.size() - 1);
+			slots.remove(slots.size() - 1);
+		}
+		while (node instanceof BPTree.InternalNode) {
+			InternalNode internal = (InternalNode) node;
+			path.add(internal);
+			slots.add(0);
+			node = internal.children[0];
+		}
+		return (LeafNode) node;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see BPTreeADT#size()
+	 */
+	@Override
+	public int size() {
+		return count;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		Queue<List<Node>> queue = new LinkedList<List<Node>>();
+		queue.add(Arrays.asList(root));
+		StringBuilder sb = new StringBuilder();
+		while (!queue.isEmpty()) {
+			Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
+			while (!queue.isEmpty()) {
+				List<Node> nodes = queue.remove();
+				sb.append('{');
+				Iterator<Node> it = nodes.iterator();
+				while (it.hasNext()) {
+					Node node = it.next();
+					sb.append(node.toString());
+					if (it.hasNext())
+						sb.append(", ");
+					if (node instanceof BPTree.InternalNode)
+						nextQueue.add(((InternalNode) node).childList());
+				}
+				sb.append('}');
+				if (!queue.isEmpty())
+					sb.append(", ");
+				else {
+					sb.append('\n');
+				}
+			}
+			queue = nextQueue;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * This abstract class represents any type of node in the tree This class is a
+	 * super class of the LeafNode and InternalNode types.
+	 * 
+	 * @author sapan
+	 */
+	private abstract class Node {
+
+		// Keys, of which the first keyCount are in use
+		K[] keys;
+		int keyCount;
+
+		int keyNumber() {
+			return keyCount;
+		}
+
+		/**
+		 * Gets the key at the given position
+		 * 
+		 * @param index
+		 * @return key
+		 */
+		K key(int index) {
+			return keys[index];
+		}
+
+		/**
+		 * Gets the position of the first key that is greater than or equal to the
+		 * given key, or keyNumber() if every key is smaller
+		 * 
+		 * @param key
+		 * @return index
+		 */
+		int lowerBound(K key) {
+			int low = 0;
+			int high = keyNumber();
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (keys[mid].compareTo(key) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Gets the position of the first key that is strictly greater than the given
+		 * key, or keyNumber() if no key is greater
+		 * 
+		 * @param key
+		 * @return index
+		 */
+		int upperBound(K key) {
+			int low = 0;
+			int high = keyNumber();
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (keys[mid].compareTo(key) <= 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Inserts key and value in the appropriate leaf node and balances the tree if
+		 * required by splitting
+		 * 
+		 * @param key
+		 * @param value
+		 */
+		abstract void insert(K key, V value);
+
+		/**
+		 * Inserts a run of a sorted batch of entries below this node. Nodes split
+		 * off this one are appended to the siblings, each behind the separator
+		 * that goes in front of it.
+		 * 
+		 * @param entries    batch sorted by key
+		 * @param from       first entry of the run
+		 * @param to         end of the run, exclusive
+		 * @param separators separators of the new siblings
+		 * @param siblings   new siblings, in key order
+		 */
+		abstract void insertAll(List<Map.Entry<K, V>> entries, int from, int to, List<K> separators,
+				List<Node> siblings);
+
+		/**
+		 * Gets the number of entries stored in the leaves below this node
+		 * 
+		 * @return number of entries
+		 */
+		abstract int subtreeSize();
+
+		/**
+		 * Gets the value of the first entry with the given key
+		 * 
+		 * @param key
+		 * @return value, or null if the key is not found
+		 */
+		abstract V getValue(K key);
+
+		/**
+		 * Gets the new sibling created after splitting the node
+		 * 
+		 * @return Node
+		 */
+		abstract Node split();
+
+		/**
+		 * Gets the separator that goes to the parent between this node and the
+		 * sibling split off it. Any key that is at least every key on the left and
+		 * at most every key on the right will do, so the shortest one is taken to
+		 * keep the internal nodes small.
+		 * 
+		 * @param sibling node returned by split()
+		 * @return separator key
+		 */
+		abstract K takeSeparator(Node sibling);
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree#rangeSearch(java.lang.Object, java.lang.String)
+		 */
+		abstract List<V> rangeSearch(K key, String comparator);
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree#rangeSearch(java.lang.Comparable, boolean,
+		 * java.lang.Comparable, boolean)
+		 */
+		abstract List<V> rangeSearch(K lo, boolean loInclusive, K hi, boolean hiInclusive);
+
+		/**
+		 * 
+		 * @return boolean
+		 */
+		abstract boolean isOverflow();
+
+		/**
+		 * Gets the smallest number of keys a node other than the root keeps, which
+		 * is about half of its capacity
+		 * 
+		 * @return number of keys
+		 */
+		abstract int minKeys();
+
+		/**
+		 * 
+		 * @return true if the node has fewer keys than it should keep
+		 */
+		boolean isUnderflow() {
+			return keyCount < minKeys();
+		}
+
+		/**
+		 * 
+		 * @return true if the node can give a key to a sibling and still keep enough
+		 */
+		boolean canLend() {
+			return keyCount > minKeys();
+		}
+
+		/**
+		 * Moves the first entry of the next sibling to the end of this node
+		 * 
+		 * @param separator key between this node and the sibling in the parent
+		 * @param sibling   next sibling
+		 * @return new separator between the two
+		 */
+		abstract K shiftFromRight(K separator, Node sibling);
+
+		/**
+		 * Moves the last entry of the previous sibling to the front of this node
+		 * 
+		 * @param separator key between the sibling and this node in the parent
+		 * @param sibling   previous sibling
+		 * @return new separator between the two
+		 */
+		abstract K shiftFromLeft(K separator, Node sibling);
+
+		/**
+		 * Appends every entry of the next sibling to this node. Both must fit in one
+		 * node, which they do when one of them is below its minimum and the other
+		 * cannot lend.
+		 * 
+		 * @param separator key between this node and the sibling in the parent
+		 * @param sibling   next sibling
+		 */
+		abstract void merge(K separator, Node sibling);
+
+		public String toString() {
+			List<K> list = new ArrayList<K>();
+			for (int i = 0; i < keyCount; i++) {
+				list.add(key(i));
+			}
+			return list.toString();
+		}
+
+	} // End of abstract class Node
+
+	/**
+	 * This class represents an internal node of the tree. This class is a concrete
+	 * sub class of the abstract Node class and provides implementation of the
+	 * operations required for internal (non-leaf) nodes.
+	 * 
+	 * @author sapan
+	 */
+	private class InternalNode extends Node {
+
+		// Children nodes, of which the first keyCount + 1 are in use
+		Node[] children;
+
+		// Number of entries below each child
+		int[] counts;
+
+		/**
+		 * Package constructor. The arrays have room for one child more than the
+		 * branching factor, which is the overflow a split removes.
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		InternalNode() {
+			this.keys = newKeys(branchingFactor);
+			this.children = (Node[]) new BPTree.Node[branchingFactor + 1];
+			this.counts = new int[branchingFactor + 1];
+		}
+
+		/**
+		 * Gets the children in use as a list
+		 * 
+		 * @return list of children
+		 */
+		List<Node> childList() {
+			return Arrays.asList(children).subList(0, keyCount + 1);
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#subtreeSize()
+		 */
+		int subtreeSize() {
+			int size = 0;
+			for (int i = 0; i <= keyCount; i++) {
+				size += counts[i];
+			}
+			return size;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#isOverflow()
+		 */
+		boolean isOverflow() {
+			boolean result = false;
+			if (keyCount + 1 > branchingFactor) {
+				result = true;
+			}
+			return result;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#insert(java.lang.Comparable, java.lang.Object)
+		 */
+		void insert(K key, V value) {
+			if (key == null) {
+				throw new IllegalArgumentException();
+			}
+			int index = upperBound(key);
+			Node child = children[index];
+			child.insert(key, value);
+			counts[index]++;
+			if (child.isOverflow()) {
+				Node siblingofNode = child.split();
+				insertChild(index, child.takeSeparator(siblingofNode), siblingofNode);
+			}
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * A child gets the entries that insert would send to it, so keys equal to a
+		 * separator go to the right of it. Only the children that get entries are
+		 * visited, each run being found by a binary search of the batch. As long as
+		 * no child splits, only their counts change; the children are gathered and
+		 * divided anew only once one has split.
+		 * 
+		 * @see BPTree.Node#insertAll(List, int, int, List, List)
+		 */
+		void insertAll(List<Map.Entry<K, V>> entries, int from, int to, List<K> separators, List<Node> siblings) {
+			// children, keys and counts of this node once a child has split
+			List<Node> nodes = null;
+			List<K> nodeKeys = null;
+			List<Integer> nodeSizes = null;
+			int copied = 0;
+
+			List<K> childSeparators = new ArrayList<K>();
+			List<Node> childSiblings = new ArrayList<Node>();
+			int start = from;
+			while (start < to) {
+				int i = upperBound(entries.get(start).getKey());
+				int end = i == keyCount ? to : runEnd(entries, start, to, keys[i]);
+				children[i].insertAll(entries, start, end, childSeparators, childSiblings);
+				if (nodes == null && childSiblings.isEmpty()) {
+					counts[i] += end - start;
+				} else {
+					if (nodes == null) {
+						nodes = new ArrayList<Node>();
+						nodeKeys = new ArrayList<K>();
+						nodeSizes = new ArrayList<Integer>();
+					}
+					for (int c = copied; c <= i; c++) {
+						if (c > 0) {
+							nodeKeys.add(keys[c - 1]);
+						}
+						nodes.add(children[c]);
+						nodeSizes.add(c < i ? counts[c]
+								: childSiblings.isEmpty() ? counts[c] + end - start : children[c].subtreeSize());
+					}
+					for (int k = 0; k < childSiblings.size(); k++) {
+						nodeKeys.add(childSeparators.get(k));
+						nodes.add(childSiblings.get(k));
+						nodeSizes.add(childSiblings.get(k).subtreeSize());
+					}
+					childSeparators.clear();
+					childSiblings.clear();
+					copied = i + 1;
+				}
+				start = end;
+			}
+
+			if (nodes != null) {
+				for (int c = copied; c <= keyCount; c++) {
+					if (c > 0) {
+						nodeKeys.add(keys[c - 1]);
+					}
+					nodes.add(children[c]);
+					nodeSizes.add(counts[c]);
+				}
+				adopt(nodes, nodeKeys, nodeSizes, separators, siblings);
+			}
+		}
+
+		/**
+		 * Gets the end of the run of entries that go left of the given separator,
+		 * that is the position of the first entry whose key is greater than or equal
+		 * to it, or to if there is none. Runs are mostly short, so the search gallops
+		 * forward from the start of the run before narrowing down.
+		 * 
+		 * @param entries sorted entries
+		 * @param from    first entry of the run, which is known to be in it
+		 * @param to      end of the entries to search
+		 * @param bound   separator closing the run
+		 * @return index
+		 */
+		int runEnd(List<Map.Entry<K, V>> entries, int from, int to, K bound) {
+			int low = from + 1;
+			int high = low;
+			for (int step = 1; high < to && entries.get(high).getKey().compareTo(bound) < 0; step <<= 1) {
+				low = high + 1;
+				high += step;
+			}
+			high = Math.min(high, to);
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (entries.get(mid).getKey().compareTo(bound) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Takes the given children, dividing them evenly between this node and as
+		 * many new siblings as needed if there are more than fit in one node.
+		 * 
+		 * @param nodes      children in key order
+		 * @param nodeKeys   keys between the children
+		 * @param nodeSizes  number of entries below each child
+		 * @param separators separators of the new siblings
+		 * @param siblings   new siblings, in key order
+		 */
+		void adopt(List<Node> nodes, List<K> nodeKeys, List<Integer> nodeSizes, List<K> separators,
+				List<Node> siblings) {
+			int total = nodes.size();
+			int parts = (total + branchingFactor - 1) / branchingFactor;
+			InternalNode node = this;
+			int start = 0;
+			for (int part = 0; part < parts; part++) {
+				int end = start + total / parts + (part < total % parts ? 1 : 0);
+				if (part > 0) {
+					// the key between the two parts moves up, as in a split
+					node = new InternalNode();
+					separators.add(nodeKeys.get(start - 1));
+					siblings.add(node);
+				}
+				Arrays.fill(node.keys, null);
+				Arrays.fill(node.children, null);
+				for (int i = start; i < end; i++) {
+					node.children[i - start] = nodes.get(i);
+					node.counts[i - start] = nodeSizes.get(i);
+					if (i > start) {
+						node.keys[i - start - 1] = nodeKeys.get(i - 1);
+					}
+				}
+				node.keyCount = end - start - 1;
+				start = end;
+			}
+			structureVersion++;
+		}
+
+		/**
+		 * Gets the right-most child whose keys may be less than or equal to the given
+		 * key. Separators equal to the key send the search to the right, so equal
+		 * keys are inserted after the existing ones.
+		 * 
+		 * @param key
+		 * @return Node
+		 */
+		Node getChildOfNode(K key) {
+			return children[upperBound(key)];
+		}
+
+		/**
+		 * Gets the left-most child that may hold a key greater than or equal to the
+		 * given key. Duplicates of a separator can sit on both sides of it, so a seek
+		 * for the first occurrence has to go left on equal separators.
+		 * 
+		 * @param key
+		 * @return Node
+		 */
+		Node getLowerChildOfNode(K key) {
+			return children[lowerBound(key)];
+		}
+
+		/**
+		 * Inserts the sibling split off the child at the given position right after
+		 * it. The position is passed in rather than searched for, since a run of
+		 * equal separators does not tell which of them the split child sits behind.
+		 * 
+		 * @param index position of the child that was split
+		 * @param key   separator between the child and its new sibling
+		 * @param child new sibling
+		 */
+		void insertChild(int index, K key, Node child) {
+			int siblingCount = child.subtreeSize();
+			System.arraycopy(keys, index, keys, index + 1, keyCount - index);
+			System.arraycopy(children, index + 1, children, index + 2, keyCount - index);
+			System.arraycopy(counts, index + 1, counts, index + 2, keyCount - index);
+			keys[index] = key;
+			children[index + 1] = child;
+			counts[index] -= siblingCount;
+			counts[index + 1] = siblingCount;
+			keyCount++;
+			structureVersion++;
+		}
+
+		/**
+		 * Brings the child at the given position back to its minimum size, by
+		 * borrowing from the previous or next child if one of them can lend, or by
+		 * merging it with one of them otherwise. This node may be left below its
+		 * own minimum by a merge.
+		 * 
+		 * @param index position of the child that is below its minimum
+		 */
+		void rebalanceChild(int index) {
+			Node child = children[index];
+			if (index > 0 && children[index - 1].canLend()) {
+				keys[index - 1] = child.shiftFromLeft(keys[index - 1], children[index - 1]);
+				counts[index - 1] = children[index - 1].subtreeSize();
+				counts[index] = child.subtreeSize();
+			} else if (index < keyCount && children[index + 1].canLend()) {
+				keys[index] = child.shiftFromRight(keys[index], children[index + 1]);
+				counts[index] = child.subtreeSize();
+				counts[index + 1] = children[index + 1].subtreeSize();
+			} else {
+				int left = index > 0 ? index - 1 : index;
+				children[left].merge(keys[left], children[left + 1]);
+				counts[left] += counts[left + 1];
+				System.arraycopy(keys, left + 1, keys, left, keyCount - left - 1);
+				System.arraycopy(children, left + 2, children, left + 1, keyCount - left - 1);
+				System.arraycopy(counts, left + 2, counts, left + 1, keyCount - left - 1);
+				keyCount--;
+				keys[keyCount] = null;
+				children[keyCount + 1] = null;
+			}
+			structureVersion++;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#split()
+		 */
+		Node split() {
+			// an append leaves a single key and two children to the sibling
+			int start = appendSplit ? keyCount - 1 : keyCount / 2 + 1;
+			int end = keyCount;
+			InternalNode sibling = new InternalNode();
+			sibling.keyCount = end - start;
+			System.arraycopy(keys, start, sibling.keys, 0, end - start);
+			System.arraycopy(children, start, sibling.children, 0, end - start + 1);
+			System.arraycopy(counts, start, sibling.counts, 0, end - start + 1);
+
+			// the key before the sibling's children stays just past the keys in use
+			// until takeSeparator moves it up
+			Arrays.fill(keys, start, end, null);
+			Arrays.fill(children, start, end + 1, null);
+			keyCount = start - 1;
+
+			return sibling;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#minKeys()
+		 */
+		int minKeys() {
+			return (branchingFactor + 1) / 2 - 1;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * The separator comes down to this node in front of the sibling's first
+		 * child, and the sibling's first key goes up in its place.
+		 * 
+		 * @see BPTree.Node#shiftFromRight(Comparable, BPTree.Node)
+		 */
+		K shiftFromRight(K separator, Node sibling) {
+			InternalNode right = (InternalNode) sibling;
+			keys[keyCount] = separator;
+			children[keyCount + 1] = right.children[0];
+			counts[keyCount + 1] = right.counts[0];
+			keyCount++;
+
+			K newSeparator = right.keys[0];
+			System.arraycopy(right.keys, 1, right.keys, 0, right.keyCount - 1);
+			System.arraycopy(right.children, 1, right.children, 0, right.keyCount);
+			System.arraycopy(right.counts, 1, right.counts, 0, right.keyCount);
+			right.keyCount--;
+			right.keys[right.keyCount] = null;
+			right.children[right.keyCount + 1] = null;
+			return newSeparator;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * The separator comes down to this node behind the sibling's last child,
+		 * and the sibling's last key goes up in its place.
+		 * 
+		 * @see BPTree.Node#shiftFromLeft(Comparable, BPTree.Node)
+		 */
+		K shiftFromLeft(K separator, Node sibling) {
+			InternalNode left = (InternalNode) sibling;
+			System.arraycopy(keys, 0, keys, 1, keyCount);
+			System.arraycopy(children, 0, children, 1, keyCount + 1);
+			System.arraycopy(counts, 0, counts, 1, keyCount + 1);
+			keys[0] = separator;
+			children[0] = left.children[left.keyCount];
+			counts[0] = left.counts[left.keyCount];
+			keyCount++;
+
+			K newSeparator = left.keys[left.keyCount - 1];
+			left.keys[left.keyCount - 1] = null;
+			left.children[left.keyCount] = null;
+			left.keyCount--;
+			return newSeparator;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#merge(Comparable, BPTree.Node)
+		 */
+		void merge(K separator, Node sibling) {
+			InternalNode right = (InternalNode) sibling;
+			keys[keyCount] = separator;
+			System.arraycopy(right.keys, 0, keys, keyCount + 1, right.keyCount);
+			System.arraycopy(right.children, 0, children, keyCount + 1, right.keyCount + 1);
+			System.arraycopy(right.counts, 0, counts, keyCount + 1, right.keyCount + 1);
+			keyCount += right.keyCount + 1;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * The middle key dropped by the split already separates the two halves and
+		 * is as short as any separator below it.
+		 * 
+		 * @see BPTree.Node#takeSeparator(BPTree.Node)
+		 */
+		K takeSeparator(Node sibling) {
+			K separator = keys[keyCount];
+			keys[keyCount] = null;
+			return separator;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#rangeSearch(java.lang.Comparable, java.lang.String)
+		 */
+		List<V> rangeSearch(K key, String comparator) {
+			if (comparator.equals("<=")) {
+				return getChildOfNode(key).rangeSearch(key, comparator);
+			}
+			return getLowerChildOfNode(key).rangeSearch(key, comparator);
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#rangeSearch(Comparable, boolean, Comparable, boolean)
+		 */
+		List<V> rangeSearch(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+			Node child = loInclusive ? getLowerChildOfNode(lo) : getChildOfNode(lo);
+			return child.rangeSearch(lo, loInclusive, hi, hiInclusive);
+		}
+
+		@Override
+		V getValue(K key) {
+			return getLowerChildOfNode(key).getValue(key);
+		}
+
+	} // End of class InternalNode
+
+	/**
+	 * This class represents a leaf node of the tree. This class is a concrete sub
+	 * class of the abstract Node class and provides implementation of the
+	 * operations that required for leaf nodes.
+	 * 
+	 * @author sapan
+	 */
+	private class LeafNode extends Node {
+
+		// Values, of which the first keyCount are in use
+		V[] values;
+
+		// Reference to the next leaf node
+		LeafNode next;
+
+		// Reference to the previous leaf node
+		LeafNode previous;
+
+		// Prefix shared by the keys of a prefix compressed leaf, whose keys array
+		// then holds the suffixes; null if the tree is not compressed
+		String prefix;
+
+		/**
+		 * Package constructor
+		 */
+		@SuppressWarnings("unchecked")
+		LeafNode() {
+			keys = newKeys(branchingFactor + 1);
+			values = (V[]) new Object[branchingFactor + 1];
+			if (prefixCompression) {
+				prefix = "";
+			}
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#key(int)
+		 */
+		@SuppressWarnings("unchecked")
+		K key(int index) {
+			if (prefix == null || prefix.isEmpty()) {
+				return keys[index];
+			}
+			return (K) (prefix + keys[index]);
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#lowerBound(java.lang.Comparable)
+		 */
+		int lowerBound(K key) {
+			if (prefix == null || prefix.isEmpty()) {
+				return super.lowerBound(key);
+			}
+			return searchSuffixes((String) key, false);
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#upperBound(java.lang.Comparable)
+		 */
+		int upperBound(K key) {
+			if (prefix == null || prefix.isEmpty()) {
+				return super.upperBound(key);
+			}
+			return searchSuffixes((String) key, true);
+		}
+
+		/**
+		 * Searches a prefix compressed leaf. The key is compared with the prefix
+		 * first; if it does not start with the prefix, every key of the leaf is on
+		 * the same side of it, otherwise the binary search compares the rest of the
+		 * key with the suffixes without building any string.
+		 * 
+		 * @param key
+		 * @param upper true for the upper bound, false for the lower bound
+		 * @return index
+		 */
+		int searchSuffixes(String key, boolean upper) {
+			int length = prefix.length();
+			int common = Math.min(length, key.length());
+			for (int i = 0; i < common; i++) {
+				char c = prefix.charAt(i);
+				char k = key.charAt(i);
+				if (c != k) {
+					return c > k ? 0 : keyCount;
+				}
+			}
+			if (key.length() < length) {
+				// the key is a proper prefix of every key of the leaf
+				return 0;
+			}
+			int low = 0;
+			int high = keyCount;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				int cmp = compareSuffix((String) keys[mid], key, length);
+				if (cmp < 0 || (upper && cmp == 0)) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Compares a suffix with the part of a key after the given offset, the same
+		 * way String.compareTo would
+		 * 
+		 * @param suffix
+		 * @param key
+		 * @param offset
+		 * @return comparison result
+		 */
+		int compareSuffix(String suffix, String key, int offset) {
+			int limit = Math.min(suffix.length(), key.length() - offset);
+			for (int i = 0; i < limit; i++) {
+				char c = suffix.charAt(i);
+				char k = key.charAt(offset + i);
+				if (c != k) {
+					return c - k;
+				}
+			}
+			return suffix.length() - (key.length() - offset);
+		}
+
+		/**
+		 * Compares the key at the given position with another key, with the sign
+		 * key(index).compareTo(key) would have, without building the key of a
+		 * compressed leaf
+		 * 
+		 * @param index
+		 * @param key
+		 * @return comparison result
+		 */
+		int compareKey(int index, K key) {
+			if (prefix == null || prefix.isEmpty()) {
+				return keys[index].compareTo(key);
+			}
+			String text = (String) key;
+			int length = prefix.length();
+			int common = Math.min(length, text.length());
+			for (int i = 0; i < common; i++) {
+				char c = prefix.charAt(i);
+				char k = text.charAt(i);
+				if (c != k) {
+					return c - k;
+				}
+			}
+			if (text.length() < length) {
+				// the other key is a proper prefix of this one
+				return 1;
+			}
+			return compareSuffix((String) keys[index], text, length);
+		}
+
+		/**
+		 * Checks if the key at the given position equals the key at a position of
+		 * another leaf, without building either of them
+		 * 
+		 * @param index
+		 * @param other
+		 * @param otherIndex
+		 * @return boolean
+		 */
+		boolean sameKey(int index, LeafNode other, int otherIndex) {
+			if (other == this || other.prefix == null || other.prefix.isEmpty()) {
+				// same prefix or none on the other side, the stored keys compare as is
+				return other == this ? keys[index].compareTo(keys[otherIndex]) == 0
+						: compareKey(index, other.keys[otherIndex]) == 0;
+			}
+			int length = keyLength(index);
+			if (length != other.keyLength(otherIndex)) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (charOfKey(index, i) != other.charOfKey(otherIndex, i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Gets the length of the String key at the given position
+		 * 
+		 * @param index
+		 * @return length
+		 */
+		int keyLength(int index) {
+			int suffix = ((String) keys[index]).length();
+			return prefix == null ? suffix : prefix.length() + suffix;
+		}
+
+		/**
+		 * Gets a character of the String key at the given position
+		 * 
+		 * @param index
+		 * @param position position of the character in the key
+		 * @return char
+		 */
+		char charOfKey(int index, int position) {
+			if (prefix == null) {
+				return ((String) keys[index]).charAt(position);
+			}
+			int length = prefix.length();
+			return position < length ? prefix.charAt(position) : ((String) keys[index]).charAt(position - length);
+		}
+
+		/**
+		 * Gets the first characters of the String key at the given position
+		 * 
+		 * @param index
+		 * @param length number of characters
+		 * @return String
+		 */
+		String keyPrefix(int index, int length) {
+			String suffix = (String) keys[index];
+			if (prefix == null) {
+				return suffix.substring(0, length);
+			}
+			if (length <= prefix.length()) {
+				return prefix.substring(0, length);
+			}
+			return prefix + suffix.substring(0, length - prefix.length());
+		}
+
+		/**
+		 * Sets the prefix of a compressed leaf to the longest one its keys share and
+		 * rewrites the suffixes to match. Keys are sorted, so that is the prefix the
+		 * first and last key have in common.
+		 */
+		void compressPrefix() {
+			if (prefix == null || keyCount == 0) {
+				return;
+			}
+			int last = keyCount - 1;
+			int length = 0;
+			int limit = Math.min(keyLength(0), keyLength(last));
+			while (length < limit && charOfKey(0, length) == charOfKey(last, length)) {
+				length++;
+			}
+			if (length != prefix.length()) {
+				setPrefix(keyPrefix(0, length));
+			}
+		}
+
+		/**
+		 * Changes the prefix of a compressed leaf, rewriting every suffix
+		 * 
+		 * @param newPrefix prefix that every key of the leaf starts with
+		 */
+		@SuppressWarnings("unchecked")
+		void setPrefix(String newPrefix) {
+			if (newPrefix.equals(prefix)) {
+				return;
+			}
+			for (int i = 0; i < keyCount; i++) {
+				String key = prefix + keys[i];
+				keys[i] = (K) key.substring(newPrefix.length());
+			}
+			prefix = newPrefix;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#subtreeSize()
+		 */
+		int subtreeSize() {
+			return keyNumber();
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#isOverflow()
+		 */
+		boolean isOverflow() {
+			boolean result = false;
+			if (keyCount > branchingFactor) {
+				result = true;
+			}
+			return result;
+		}
+
+		/**
+		 * 
+		 * @return true if one more key would make the leaf overflow
+		 */
+		boolean isFull() {
+			return keyCount >= branchingFactor;
+		}
+
+		/**
+		 * Checks if the first key equal to or greater than the given key is in this
+		 * leaf, or would be if there was one
+		 * 
+		 * @param key
+		 * @return boolean
+		 */
+		boolean holdsLowerBound(K key) {
+			if (previous != null && previous.compareKey(previous.keyNumber() - 1, key) >= 0) {
+				return false;
+			}
+			return next == null || (keyNumber() > 0 && compareKey(keyNumber() - 1, key) >= 0);
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#insert(Comparable, Object)
+		 */
+		void insert(K key, V value) {
+			int index = 0;
+			if (value == null) {
+				throw new IllegalArgumentException();
+			}
+
+			// equal keys go after the existing ones to keep them in insertion order
+			index = upperBound(key);
+			appendSplit = next == null && index == keyCount;
+			insertAt(index, key, value);
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * The run is merged with the entries of the leaf, after the equal keys
+		 * already there. If it fits in the arrays, the merge is done in place from
+		 * the back and a leaf left one key over is split as insert would split it;
+		 * otherwise the result is divided evenly between this leaf and as many new
+		 * leaves as needed, which are linked in after it.
+		 * 
+		 * @see BPTree.Node#insertAll(List, int, int, List, List)
+		 */
+		@SuppressWarnings("unchecked")
+		void insertAll(List<Map.Entry<K, V>> entries, int from, int to, List<K> separators, List<Node> siblings) {
+			int total = keyCount + to - from;
+			if (total <= keys.length) {
+				if (prefix != null) {
+					// the run is sorted, so a prefix of its ends is a prefix of all of it
+					String first = (String) entries.get(from).getKey();
+					String last = (String) entries.get(to - 1).getKey();
+					int length = 0;
+					while (length < first.length() && length < last.length()
+							&& first.charAt(length) == last.charAt(length)) {
+						length++;
+					}
+					coverPrefix(first.substring(0, length));
+				}
+				// the first i entries of the leaf have not moved yet and the slots from
+				// k on are filled
+				int i = keyCount;
+				int k = total;
+				for (int j = to - 1; j >= from; j--) {
+					K key = entries.get(j).getKey();
+					int low = 0;
+					int high = i;
+					while (low < high) {
+						int mid = (low + high) >>> 1;
+						if (compareKey(mid, key) <= 0) {
+							low = mid + 1;
+						} else {
+							high = mid;
+						}
+					}
+					k -= i - low;
+					System.arraycopy(keys, low, keys, k, i - low);
+					System.arraycopy(values, low, values, k, i - low);
+					i = low;
+					k--;
+					keys[k] = prefix == null ? key : (K) ((String) key).substring(prefix.length());
+					values[k] = entries.get(j).getValue();
+				}
+				keyCount = total;
+				if (isOverflow()) {
+					appendSplit = false;
+					Node sibling = split();
+					separators.add(takeSeparator(sibling));
+					siblings.add(sibling);
+				}
+				return;
+			}
+
+			K[] mergedKeys = newKeys(total);
+			V[] mergedValues = (V[]) new Object[total];
+			int i = 0;
+			int j = from;
+			for (int k = 0; k < total; k++) {
+				if (j == to || (i < keyCount && compareKey(i, entries.get(j).getKey()) <= 0)) {
+					mergedKeys[k] = key(i);
+					mergedValues[k] = values[i++];
+				} else {
+					mergedKeys[k] = entries.get(j).getKey();
+					mergedValues[k] = entries.get(j++).getValue();
+				}
+			}
+
+			int parts = (total + branchingFactor - 1) / branchingFactor;
+			LeafNode leaf = this;
+			int start = 0;
+			for (int part = 0; part < parts; part++) {
+				int end = start + total / parts + (part < total % parts ? 1 : 0);
+				if (part > 0) {
+					LeafNode sibling = new LeafNode();
+					sibling.previous = leaf;
+					sibling.next = leaf.next;
+					if (leaf.next != null) {
+						leaf.next.previous = sibling;
+					}
+					leaf.next = sibling;
+					leaf = sibling;
+				}
+				Arrays.fill(leaf.keys, null);
+				Arrays.fill(leaf.values, null);
+				leaf.keyCount = 0;
+				for (int k = start; k < end; k++) {
+					leaf.insertAt(leaf.keyCount, mergedKeys[k], mergedValues[k]);
+				}
+				leaf.compressPrefix();
+				if (part > 0) {
+					separators.add(leaf.previous.takeSeparator(leaf));
+					siblings.add(leaf);
+				}
+				start = end;
+			}
+		}
+
+		/**
+		 * Removes the entry at the given position. Removing the first or last key
+		 * may leave the others of a compressed leaf with a longer common prefix.
+		 * 
+		 * @param index
+		 */
+		void removeAt(int index) {
+			System.arraycopy(keys, index + 1, keys, index, keyCount - index - 1);
+			System.arraycopy(values, index + 1, values, index, keyCount - index - 1);
+			keyCount--;
+			keys[keyCount] = null;
+			values[keyCount] = null;
+			if (index == 0 || index == keyCount) {
+				compressPrefix();
+			}
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#minKeys()
+		 */
+		int minKeys() {
+			return (branchingFactor + 1) / 2;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#shiftFromRight(Comparable, BPTree.Node)
+		 */
+		K shiftFromRight(K separator, Node sibling) {
+			LeafNode right = (LeafNode) sibling;
+			insertAt(keyCount, right.key(0), right.values[0]);
+			right.removeAt(0);
+			return takeSeparator(right);
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#shiftFromLeft(Comparable, BPTree.Node)
+		 */
+		K shiftFromLeft(K separator, Node sibling) {
+			LeafNode left = (LeafNode) sibling;
+			int last = left.keyCount - 1;
+			insertAt(0, left.key(last), left.values[last]);
+			left.removeAt(last);
+			return left.takeSeparator(this);
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * The sibling is unlinked from the leaf chain.
+		 * 
+		 * @see BPTree.Node#merge(Comparable, BPTree.Node)
+		 */
+		void merge(K separator, Node sibling) {
+			LeafNode right = (LeafNode) sibling;
+			for (int i = 0; i < right.keyCount; i++) {
+				insertAt(keyCount, right.key(i), right.values[i]);
+			}
+			next = right.next;
+			if (next != null) {
+				next.previous = this;
+			}
+		}
+
+		/**
+		 * Shortens the prefix of a compressed leaf so that the given key starts with
+		 * it. The first key of an empty leaf becomes the whole prefix.
+		 * 
+		 * @param text key about to be stored
+		 */
+		void coverPrefix(String text) {
+			if (keyCount == 0) {
+				prefix = text;
+			} else if (!text.startsWith(prefix)) {
+				int length = 0;
+				while (length < prefix.length() && length < text.length()
+						&& prefix.charAt(length) == text.charAt(length)) {
+					length++;
+				}
+				setPrefix(prefix.substring(0, length));
+			}
+		}
+
+		/**
+		 * Inserts an entry at the given position, shortening the prefix of a
+		 * compressed leaf if the key does not start with it
+		 * 
+		 * @param index
+		 * @param key
+		 * @param value
+		 */
+		@SuppressWarnings("unchecked")
+		void insertAt(int index, K key, V value) {
+			if (prefix != null) {
+				String text = (String) key;
+				coverPrefix(text);
+				key = (K) text.substring(prefix.length());
+			}
+			System.arraycopy(keys, index, keys, index + 1, keyCount - index);
+			System.arraycopy(values, index, values, index + 1, keyCount - index);
+			keys[index] = key;
+			values[index] = value;
+			keyCount++;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see BPTree.Node#split()
+		 */
+		Node split() {
+			LeafNode sibling = new LeafNode();
+			// keys that only ever grow would leave every left half empty for good, so
+			// an append moves just the new key to the sibling
+			int from = appendSplit ? keyNumber() - 1 : (keyNumber() + 1) / 2;
+			int to = keyNumber();
+			System.arraycopy(keys, from, sibling.keys, 0, to - from);
+			System.arraycopy(values, from, sibling.values, 0, to - from);
+			sibling.keyCount = to - from;
+
+			Arrays.fill(keys, from, to, null);
+			Arrays.fill(values, from, to, null);
+			keyCount = from;
+			if (prefix != null) {
+				// both halves start from the old prefix and may share a longer one
+				sibling.prefix = prefix;
+				compressPrefix();
+				sibling.compressPrefix();
+			}
+			sibling.previous = this;
+			sibling.next = next;
+			if (next != null) {
+				next.previous = sibling;
+			}
+			next = sibling;
+			return sibling;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * For String keys this is the shortest prefix of the sibling's first key
+		 * that is still greater than this leaf's last key, rather than the whole
+		 * first key.
+		 * 
+		 * @see BPTree.Node#takeSeparator(BPTree.Node)
+		 */
+		@SuppressWarnings("unchecked")
+		K takeSeparator(Node sibling) {
+			LeafNode right = (LeafNode) sibling;
+			if (!(right.keys[0] instanceof String)) {
+				return right.keys[0];
+			}
+			int last = keyCount - 1;
+			int length = 0;
+			int limit = Math.min(keyLength(last), right.keyLength(0));
+			while (length < limit && charOfKey(last, length) == right.charOfKey(0, length)) {
+				length++;
+			}
+			if (length == right.keyLength(0)) {
+				// the last key equals the first one, nothing shorter separates them
+				return right.key(0);
+			}
+			return (K) right.keyPrefix(0, length + 1);
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * The search starts at this leaf, which is the one the key descends to, and
+		 * only walks the leaves that can hold matches: forward for ">=" and "==",
+		 * backward for "<=". The walk stops at the first key outside the bound.
+		 * 
+		 * @see BPTree.Node#rangeSearch(Comparable, String)
+		 */
+		List<V> rangeSearch(K key, String comparator) {
+			if (key == null) {
+				throw new IllegalArgumentException();
+			}
+
+			List<V> result = new ArrayList<V>();
+			if (comparator.equals("<=")) {
+				// every key after the upper bound is greater, walk back to the head
+				LeafNode node = this;
+				int index = upperBound(key) - 1;
+				while (node != null) {
+					for (; index >= 0; index--) {
+						result.add(node.values[index]);
+					}
+					node = node.previous;
+					if (node != null) {
+						index = node.keyNumber() - 1;
+					}
+				}
+				Collections.reverse(result);
+			} else {
+				boolean equalOnly = comparator.equals("==");
+				LeafNode node = this;
+				int index = lowerBound(key);
+				while (node != null) {
+					for (; index < node.keyNumber(); index++) {
+						if (equalOnly && node.compareKey(index, key) != 0) {
+							return result;
+						}
+						result.add(node.values[index]);
+					}
+					node = node.next;
+					index = 0;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * Starts at the first key past the lower bound in this leaf and follows the
+		 * next links until a key passes the upper bound.
+		 * 
+		 * @see BPTree.Node#rangeSearch(Comparable, boolean, Comparable, boolean)
+		 */
+		List<V> rangeSearch(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+			List<V> result = new ArrayList<V>();
+			LeafNode node = this;
+			int index = loInclusive ? lowerBound(lo) : upperBound(lo);
+			while (node != null) {
+				for (; index < node.keyNumber(); index++) {
+					int cmp = node.compareKey(index, hi);
+					if (cmp > 0 || (cmp == 0 && !hiInclusive)) {
+						return result;
+					}
+					result.add(node.values[index]);
 				}
+				node = node.next;
+				index = 0;
 			}
-			queue = nextQueue;
+			return result;
 		}
-		return sb.toString();
-	}
+
+		@Override
+		V getValue(K key) {
+			return firstValue(key);
+		}
+
+		/**
+		 * Gets the value of the first occurrence of the key, searching from this
+		 * leaf. Duplicates of a separator can sit on both sides of it, so if every
+		 * key of this leaf is smaller, the first match opens the next one.
+		 * 
+		 * @param key
+		 * @return value, or null if the key is not found
+		 */
+		V firstValue(K key) {
+			int loc = lowerBound(key);
+			if (loc == keyNumber()) {
+				return next != null && next.keyNumber() > 0 && next.compareKey(0, key) == 0 ? next.values[0] : null;
+			}
+			return compareKey(loc, key) == 0 ? values[loc] : null;
+		}
+
+	} // End of class LeafNode
 
 	/**
-	 * This abstract class represents any type of node in the tree This class is a
-	 * super class of the LeafNode and InternalNode types.
-	 * 
-	 * @author sapan
+	 * This class iterates over the values of a key range by walking the leaf chain
+	 * forward. It holds a single leaf and a position in it, so nothing is
+	 * allocated per element.
 	 */
-	private abstract class Node {
+	private class RangeIterator implements Iterator<V> {
 
-		// List of keys
-		List<K> keys;
+		// Current leaf, null once the range is exhausted
+		LeafNode leaf;
 
-		int keyNumber() {
-			return keys.size();
-		}
+		// Position of the next key in the current leaf
+		int index;
 
-		/**
-		 * Package constructor
-		 */
-		Node() {
-			this.keys = new ArrayList<K>();
+		// Upper bound of the range, null if there is none
+		K hi;
+		boolean hiInclusive;
 
-		}
+		// Prefix every key must start with, null if there is none
+		K prefix;
+
+		int expectedModCount;
 
 		/**
-		 * Inserts key and value in the appropriate leaf node and balances the tree if
-		 * required by splitting
+		 * Package constructor
 		 * 
-		 * @param key
-		 * @param value
+		 * @see BPTree#rangeIterator(Comparable, boolean, Comparable, boolean)
+		 * @see BPTree#prefixIterator(Comparable)
 		 */
-		abstract void insert(K key, V value);
+		RangeIterator(K lo, boolean loInclusive, K hi, boolean hiInclusive, K prefix) {
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			this.prefix = prefix;
+			this.expectedModCount = modCount;
+			leaf = seekLeaf(lo, loInclusive);
+			if (lo != null) {
+				index = loInclusive ? leaf.lowerBound(lo) : leaf.upperBound(lo);
+			}
+			settle();
+		}
 
 		/**
-		 * Gets the first leaf key of the tree
-		 * 
-		 * @return key
+		 * Moves past exhausted leaves and ends the iteration once the next key is
+		 * beyond the upper bound or no longer starts with the prefix
 		 */
-		abstract K getFirstLeafKey();
+		@SuppressWarnings("unchecked")
+		void settle() {
+			while (leaf != null && index >= leaf.keyNumber()) {
+				leaf = leaf.next;
+				index = 0;
+			}
+			if (leaf != null && hi != null) {
+				int cmp = leaf.compareKey(index, hi);
+				if (cmp > 0 || (cmp == 0 && !hiInclusive)) {
+					leaf = null;
+				}
+			}
+			if (leaf != null && prefix != null && !((PrefixComparable<K>) leaf.key(index)).startsWith(prefix)) {
+				leaf = null;
+			}
+		}
 
-		abstract V getValue(K key);
+		@Override
+		public boolean hasNext() {
+			return leaf != null;
+		}
 
-		/**
-		 * Gets the new sibling created after splitting the node
-		 * 
-		 * @return Node
-		 */
-		abstract Node split();
+		@Override
+		public V next() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (leaf == null) {
+				throw new NoSuchElementException();
+			}
+			V value = leaf.values[index++];
+			settle();
+			return value;
+		}
 
-		/*
-		 * (non-Javadoc)
+	} // End of class RangeIterator
+
+	/**
+	 * This class iterates over the values of a key range in descending order by
+	 * walking the leaf chain backward from the upper bound.
+	 */
+	private class DescendingRangeIterator implements Iterator<V> {
+
+		// Current leaf, null once the range is exhausted
+		LeafNode leaf;
+
+		// Position of the next key in the current leaf
+		int index;
+
+		// Lower bound of the range, null if there is none
+		K lo;
+		boolean loInclusive;
+
+		int expectedModCount;
+
+		/**
+		 * Package constructor
 		 * 
-		 * @see BPTree#rangeSearch(java.lang.Object, java.lang.String)
+		 * @see BPTree#descendingRangeIterator(Comparable, boolean, Comparable,
+		 *      boolean)
 		 */
-		abstract List<V> rangeSearch(K key, String comparator);
+		DescendingRangeIterator(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.expectedModCount = modCount;
+			leaf = seekLeafBackward(hi, hiInclusive);
+			if (hi == null) {
+				index = leaf.keyNumber() - 1;
+			} else {
+				index = (hiInclusive ? leaf.upperBound(hi) : leaf.lowerBound(hi)) - 1;
+			}
+			settle();
+		}
 
 		/**
-		 * 
-		 * @return boolean
+		 * Moves back past exhausted leaves and ends the iteration once the next key
+		 * is beyond the lower bound
 		 */
-		abstract boolean isOverflow();
+		void settle() {
+			while (leaf != null && index < 0) {
+				leaf = leaf.previous;
+				if (leaf != null) {
+					index = leaf.keyNumber() - 1;
+				}
+			}
+			if (leaf != null && lo != null) {
+				int cmp = leaf.compareKey(index, lo);
+				if (cmp < 0 || (cmp == 0 && !loInclusive)) {
+					leaf = null;
+				}
+			}
+		}
 
-		public String toString() {
-			return keys.toString();
+		@Override
+		public boolean hasNext() {
+			return leaf != null;
 		}
 
-	} // End of abstract class Node
+		@Override
+		public V next() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (leaf == null) {
+				throw new NoSuchElementException();
+			}
+			V value = leaf.values[index--];
+			settle();
+			return value;
+		}
+
+	} // End of class DescendingRangeIterator
 
 	/**
-	 * This class represents an internal node of the tree. This class is a concrete
-	 * sub class of the abstract Node class and provides implementation of the
-	 * operations required for internal (non-leaf) nodes.
-	 * 
-	 * @author sapan
+	 * This class splits a key range over a run of sibling subtrees. A split hands
+	 * the first half of the run to a new spliterator and keeps the rest; a run of
+	 * a single internal node is first replaced by those of its children that
+	 * overlap the range. Once traversal starts the run is no longer split and is
+	 * walked through the leaf chain up to the last leaf of its last subtree.
 	 */
-	private class InternalNode extends Node {
+	private class RangeSpliterator implements Spliterator<V> {
+
+		// Sibling subtrees left to traverse, null once traversal has started, and
+		// the number of entries in each
+		List<Node> nodes;
+		List<Integer> sizes;
+
+		// Current leaf and position, and the last leaf of the run
+		LeafNode leaf;
+		int index;
+		LeafNode lastLeaf;
 
-		// List of children nodes
-		List<Node> children;
+		// Bounds of the range, null if there is none
+		K lo;
+		boolean loInclusive;
+		K hi;
+		boolean hiInclusive;
+
+		long estimate;
+		int expectedModCount;
 
 		/**
 		 * Package constructor
+		 * 
+		 * @param nodes    run of sibling subtrees holding the range
+		 * @param sizes    number of entries in each subtree
+		 * @param estimate estimated number of values of the range in the run
 		 */
-		InternalNode() {
-			this.keys = new ArrayList<K>();
-			this.children = new ArrayList<Node>();
+		RangeSpliterator(List<Node> nodes, List<Integer> sizes, K lo, boolean loInclusive, K hi, boolean hiInclusive,
+				long estimate) {
+			this.nodes = nodes;
+			this.sizes = sizes;
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			this.estimate = estimate;
+			this.expectedModCount = modCount;
 		}
 
-		/**
+		/*
 		 * (non-Javadoc)
 		 * 
-		 * @see BPTree.Node#getFirstLeafKey()
+		 * The run is split where the entries of its subtrees, taken from the
+		 * counts of their parent, add up to half, so both halves get about the same
+		 * number of entries to scan however unevenly the subtrees are filled.
+		 * 
+		 * @see java.util.Spliterator#trySplit()
 		 */
-		K getFirstLeafKey() {
-			K firstKey = children.get(0).getFirstLeafKey();
-			return firstKey;
+		@Override
+		public Spliterator<V> trySplit() {
+			if (nodes == null) {
+				return null;
+			}
+			while (nodes.size() == 1 && nodes.get(0) instanceof BPTree.InternalNode) {
+				InternalNode internal = (InternalNode) nodes.get(0);
+				int from = 0;
+				int to = internal.keyNumber();
+				if (lo != null) {
+					from = loInclusive ? internal.lowerBound(lo) : internal.upperBound(lo);
+				}
+				if (hi != null) {
+					to = hiInclusive ? internal.upperBound(hi) : internal.lowerBound(hi);
+				}
+				nodes = new ArrayList<Node>(internal.childList().subList(from, Math.max(from, to + 1)));
+				sizes = new ArrayList<Integer>();
+				for (int i = from; i <= to; i++) {
+					sizes.add(internal.counts[i]);
+				}
+			}
+			if (nodes.size() < 2) {
+				return null;
+			}
+			long total = 0;
+			for (int size : sizes) {
+				total += size;
+			}
+			int mid = 1;
+			long prefixTotal = sizes.get(0);
+			while (mid < nodes.size() - 1 && 2 * (prefixTotal + sizes.get(mid)) <= total) {
+				prefixTotal += sizes.get(mid);
+				mid++;
+			}
+			long prefixEstimate = total == 0 ? estimate / 2 : estimate * prefixTotal / total;
+			List<Node> prefix = new ArrayList<Node>(nodes.subList(0, mid));
+			List<Integer> prefixSizes = new ArrayList<Integer>(sizes.subList(0, mid));
+			nodes = new ArrayList<Node>(nodes.subList(mid, nodes.size()));
+			sizes = new ArrayList<Integer>(sizes.subList(mid, sizes.size()));
+			estimate -= prefixEstimate;
+			return new RangeSpliterator(prefix, prefixSizes, lo, loInclusive, hi, hiInclusive, prefixEstimate);
 		}
 
-		/**
+		/*
 		 * (non-Javadoc)
 		 * 
-		 * @see BPTree.Node#isOverflow()
+		 * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
 		 */
-		boolean isOverflow() {
-			boolean result = false;
-			if (children.size() > branchingFactor) {
-				result = true;
+		@Override
+		public boolean tryAdvance(Consumer<? super V> action) {
+			if (nodes != null) {
+				start();
 			}
-			return result;
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (leaf == null) {
+				return false;
+			}
+			V value = leaf.values[index++];
+			settle();
+			action.accept(value);
+			return true;
 		}
 
-		/**
+		/*
 		 * (non-Javadoc)
 		 * 
-		 * @see BPTree.Node#insert(java.lang.Comparable, java.lang.Object)
+		 * @see java.util.Spliterator#forEachRemaining(java.util.function.Consumer)
 		 */
-		void insert(K key, V value) {
-			if (key == null) {
-				throw new IllegalArgumentException();
-			}
-			Node child = getChildOfNode(key);
-			child.insert(key, value);
-			if (child.isOverflow()) {
-				Node siblingofNode = child.split();
-				insertChild(siblingofNode.getFirstLeafKey(), siblingofNode);
-			}
-			if (root.isOverflow()) {
-				Node sibling = split();
-				InternalNode newRoot = new InternalNode();
-				newRoot.keys.add(sibling.getFirstLeafKey());
-				newRoot.children.add(this);
-				newRoot.children.add(sibling);
-				root = newRoot;
+		@Override
+		public void forEachRemaining(Consumer<? super V> action) {
+			while (tryAdvance(action)) {
 			}
 		}
 
-		Node getChildOfNode(K key) {
-			int index = 0;
-			int pos = Collections.binarySearch(keys, key);
-			if (pos >= 0) {
-				index = pos + 1;
-			} else {
-				index = -pos - 1;
+		/**
+		 * Seeks to the start of the range inside the first subtree and finds the
+		 * last leaf of the last subtree
+		 */
+		void start() {
+			if (nodes.isEmpty()) {
+				// the bounds cross, nothing is in range
+				nodes = null;
+				return;
+			}
+			Node node = nodes.get(0);
+			while (node instanceof BPTree.InternalNode) {
+				InternalNode internal = (InternalNode) node;
+				if (lo == null) {
+					node = internal.children[0];
+				} else {
+					node = loInclusive ? internal.getLowerChildOfNode(lo) : internal.getChildOfNode(lo);
+				}
 			}
-			return children.get(index);
+			leaf = (LeafNode) node;
+			if (lo != null) {
+				index = loInclusive ? leaf.lowerBound(lo) : leaf.upperBound(lo);
+			}
+			node = nodes.get(nodes.size() - 1);
+			while (node instanceof BPTree.InternalNode) {
+				InternalNode internal = (InternalNode) node;
+				node = internal.children[internal.keyNumber()];
+			}
+			lastLeaf = (LeafNode) node;
+			nodes = null;
+			settle();
 		}
 
-		void insertChild(K key, Node child) {
-			int index = 0;
-			int pos = Collections.binarySearch(keys, key);
-			if (pos >= 0) {
-				index = pos + 1;
-				children.add(index, child);
-				keys.add(index, key);
-			} else {
-				index = -pos - 1;
-				keys.add(index, key);
-				children.add(index + 1, child);
+		/**
+		 * Moves past exhausted leaves and ends the traversal at the end of the last
+		 * leaf or once the next key is beyond the upper bound
+		 */
+		void settle() {
+			while (leaf != null && index >= leaf.keyNumber()) {
+				leaf = leaf == lastLeaf ? null : leaf.next;
+				index = 0;
+			}
+			if (leaf != null && hi != null) {
+				int cmp = leaf.compareKey(index, hi);
+				if (cmp > 0 || (cmp == 0 && !hiInclusive)) {
+					leaf = null;
+				}
 			}
-			;
 		}
 
-		/**
+		/*
 		 * (non-Javadoc)
 		 * 
-		 * @see BPTree.Node#split()
+		 * @see java.util.Spliterator#estimateSize()
 		 */
-		Node split() {
-			int start = keys.size() / 2 + 1;
-			int end = keys.size();
-			InternalNode sibling = new InternalNode();
-			sibling.keys.addAll(keys.subList(start, end));
-			sibling.children.addAll(children.subList(start, end + 1));
-
-			keys.subList(start - 1, end).clear();
-			children.subList(start, end + 1).clear();
-
-			return sibling;
+		@Override
+		public long estimateSize() {
+			return estimate;
 		}
 
-		/**
+		/*
 		 * (non-Javadoc)
 		 * 
-		 * @see BPTree.Node#rangeSearch(java.lang.Comparable, java.lang.String)
+		 * @see java.util.Spliterator#characteristics()
 		 */
-		List<V> rangeSearch(K key, String comparator) {
-			return getChildOfNode(key).rangeSearch(key, comparator);
-		}
-
 		@Override
-		V getValue(K key) {
-			return getChildOfNode(key).getValue(key);
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.NONNULL;
 		}
 
-	} // End of class InternalNode
+	} // End of class RangeSpliterator
 
 	/**
-	 * This class represents a leaf node of the tree. This class is a concrete sub
-	 * class of the abstract Node class and provides implementation of the
-	 * operations that required for leaf nodes.
+	 * This class is a page of values returned by a scan, with the cursor that
+	 * resumes the scan after it.
 	 * 
-	 * @author sapan
+	 * @param <K> key
+	 * @param <V> value
 	 */
-	private class LeafNode extends Node {
+	public static class Page<K, V> {
 
-		// List of values
-		List<V> values;
-
-		// Reference to the next leaf node
-		LeafNode next;
+		// Values of the page in key order
+		private final List<V> values;
 
-		// Reference to the previous leaf node
-		LeafNode previous;
+		// Cursor of the next page, null if this is the last one
+		private final Cursor<K> next;
 
 		/**
 		 * Package constructor
+		 * 
+		 * @param values
+		 * @param next
 		 */
-		LeafNode() {
-			keys = new ArrayList<K>();
-			values = new ArrayList<V>();
+		Page(List<V> values, Cursor<K> next) {
+			this.values = values;
+			this.next = next;
 		}
 
 		/**
-		 * (non-Javadoc)
+		 * Gets the values of the page
 		 * 
-		 * @see BPTree.Node#getFirstLeafKey()
+		 * @return values
 		 */
-		K getFirstLeafKey() {
-			return keys.get(0);
+		public List<V> getValues() {
+			return values;
 		}
 
 		/**
-		 * (non-Javadoc)
+		 * Gets the cursor to pass to the next scan, or null if the scan is complete
 		 * 
-		 * @see BPTree.Node#isOverflow()
+		 * @return Cursor
 		 */
-		boolean isOverflow() {
-			boolean result = false;
-			if (values.size() > branchingFactor) {
-				result = true;
-			}
-			return result;
+		public Cursor<K> getNextCursor() {
+			return next;
 		}
 
 		/**
-		 * (non-Javadoc)
 		 * 
-		 * @see BPTree.Node#insert(Comparable, Object)
+		 * @return true if there is another page
 		 */
-		void insert(K key, V value) {
-			int index = 0;
-			if (value == null) {
-				throw new IllegalArgumentException();
-			}
+		public boolean hasNext() {
+			return next != null;
+		}
 
-			int pos = Collections.binarySearch(keys, key);
-			if (pos >= 0) {
-				index = pos;
-				values.add(index, value);
-				keys.add(index, key);
-			} else {
-				index = -pos - 1;
-				keys.add(index, key);
-				values.add(index, value);
-			}
+	} // End of class Page
 
-			if (root.isOverflow()) {
-				Node sibling = split();
-				InternalNode newRoot = new InternalNode();
-				newRoot.keys.add(sibling.getFirstLeafKey());
-				newRoot.children.add(this);
-				newRoot.children.add(sibling);
-				root = newRoot;
-			}
+	/**
+	 * This class is an opaque continuation token of a scan. It holds the last key
+	 * returned and the number of entries with that key returned so far, which
+	 * tells a scan over duplicate keys where to resume.
+	 * 
+	 * @param <K> key
+	 */
+	public static final class Cursor<K> implements Serializable {
 
-		}
+		private static final long serialVersionUID = 1L;
+
+		// Last key returned
+		private final K key;
+
+		// Number of entries with the last key returned
+		private final int ordinal;
 
 		/**
-		 * (non-Javadoc)
+		 * Package constructor
 		 * 
-		 * @see BPTree.Node#split()
+		 * @param key
+		 * @param ordinal
 		 */
-		Node split() {
-			LeafNode sibling = new LeafNode();
-			int from = (keyNumber() + 1) / 2;
-			int to = keyNumber();
-			sibling.keys.addAll(keys.subList(from, to));
-			sibling.values.addAll(values.subList(from, to));
-
-			keys.subList(from, to).clear();
-			values.subList(from, to).clear();
-			sibling.previous=this;
-			sibling.next = next;
-			next = sibling;
-			return sibling;
+		Cursor(K key, int ordinal) {
+			this.key = key;
+			this.ordinal = ordinal;
 		}
 
 		/**
-		 * (non-Javadoc)
+		 * Gets a cursor that starts a scan at the first entry with a key equal to or
+		 * greater than the given key
 		 * 
-		 * @see BPTree.Node#rangeSearch(Comparable, String)
+		 * @param key
+		 * @return Cursor
 		 */
-		List<V> rangeSearch(K key, String comparator) {
+		public static <K> Cursor<K> startingAt(K key) {
 			if (key == null) {
 				throw new IllegalArgumentException();
 			}
-
-			List<V> result = new ArrayList<V>();
-			LeafNode node = this;
-			//System.out.println("node"+node.previous);
-			while (node.previous != null) {
-				node = node.previous;
-			}
-			if ((comparator.equals(">="))) {
-				while (node != null) {
-					Iterator<K> kIt = node.keys.iterator();
-					Iterator<V> vIt = node.values.iterator();
-
-					while (kIt.hasNext()) {
-
-						K key1 = kIt.next();
-						V value1 = vIt.next();
-						int cmp1 = key1.compareTo(key);
-						if (cmp1 >= 0) {
-							result.add(value1);
-						}
-					}
-					node = node.next;
-				}
-
-			} else if ((comparator.equals("<="))) {
-
-				while (node != null) {
-					Iterator<K> kIt = node.keys.iterator();
-					Iterator<V> vIt = node.values.iterator();
-
-					while (kIt.hasNext()) {
-						K key1 = kIt.next();
-						V value1 = vIt.next();
-						int cmp1 = key1.compareTo(key);
-						if (cmp1 <= 0) {
-							result.add(value1);
-						}
-					}
-					node = node.next;
-				}
-			} else {
-				while (node != null) {
-					Iterator<K> kIt = node.keys.iterator();
-					Iterator<V> vIt = node.values.iterator();
-
-					while (kIt.hasNext()) {
-
-						K key1 = kIt.next();
-						V value1 = vIt.next();
-
-						int cmp1 = key1.compareTo(key);
-						if (cmp1 == 0) {
-							result.add(value1);
-						}
-					}
-					node = node.next;
-				}
-
-			}
-			return result;
-		}
-
-		@Override
-		V getValue(K key) {
-			int loc = Collections.binarySearch(keys, key);
-			return loc >= 0 ? values.get(loc) : null;
+			return new Cursor<K>(key, 0);
 		}
 
-	} // End of class LeafNode
+	} // End of class Cursor
 
 	/**
 	 * Contains a basic test scenario for a BPTree instance. It shows a simple
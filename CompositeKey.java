@@ -0,0 +1,143 @@
+import java.util.Arrays;
+
+/**
+ * Key of several columns for multi-column indexes such as (category, price).
+ * Keys are ordered by their first column, then their second, and so on; a key
+ * that is a prefix of another sorts before it. A key of only the leading
+ * columns is therefore a valid prefix for BPTree#prefixSearch, which returns
+ * every entry whose key starts with those columns.
+ */
+public final class CompositeKey implements Comparable<CompositeKey>, PrefixComparable<CompositeKey> {
+
+	// Columns of the key, in significance order
+	private final Comparable<?>[] columns;
+
+	/**
+	 * Private constructor
+	 * 
+	 * @param columns
+	 */
+	private CompositeKey(Comparable<?>[] columns) {
+		this.columns = columns;
+	}
+
+	/**
+	 * Creates a key of the given columns. Columns at the same position must be of
+	 * mutually comparable types in every key of a tree.
+	 * 
+	 * @param columns
+	 * @return CompositeKey
+	 */
+	public static CompositeKey of(Comparable<?>... columns) {
+		for (Comparable<?> column : columns) {
+			if (column == null) {
+				throw new IllegalArgumentException();
+			}
+		}
+		return new CompositeKey(columns.clone());
+	}
+
+	/**
+	 * Gets the number of columns
+	 * 
+	 * @return int
+	 */
+	public int size() {
+		return columns.length;
+	}
+
+	/**
+	 * Gets a column
+	 * 
+	 * @param index
+	 * @return column at the index
+	 */
+	public Comparable<?> get(int index) {
+		return columns[index];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see PrefixComparable#startsWith(java.lang.Object)
+	 */
+	@Override
+	public boolean startsWith(CompositeKey prefix) {
+		if (prefix.columns.length > columns.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.columns.length; i++) {
+			if (compareColumn(columns[i], prefix.columns[i]) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Comparable#compareTo(java.lang.Object)
+	 */
+	@Override
+	public int compareTo(CompositeKey other) {
+		int n = Math.min(columns.length, other.columns.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = compareColumn(columns[i], other.columns[i]);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return Integer.compare(columns.length, other.columns.length);
+	}
+
+	/**
+	 * Compares two columns at the same position
+	 * 
+	 * @param a
+	 * @param b
+	 * @return comparison of the columns
+	 */
+	@SuppressWarnings("unchecked")
+	private static int compareColumn(Comparable<?> a, Comparable<?> b) {
+		return ((Comparable<Object>) a).compareTo(b);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof CompositeKey && Arrays.equals(columns, ((CompositeKey) other).columns);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(columns);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(columns[i]);
+		}
+		return sb.append(")").toString();
+	}
+
+} // End of class CompositeKey
@@ -0,0 +1,493 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * B+ tree specialized for double keys. Keys are kept unboxed in double[] arrays sized
+ * from the branching factor, and every comparison is a primitive one, so
+ * neither the nodes nor the lookups create or dereference key objects. The
+ * structure and the behaviour otherwise follow BPTree.
+ * 
+ * Keys are ordered by the primitive comparisons, not by Double.compare: NaN is
+ * rejected as a key and as a bound, and -0.0 and 0.0 are the same key.
+ * 
+ * @param <V> type of the values
+ */
+public class DoubleBPTree<V> {
+
+	// Root of the tree
+	private Node root;
+
+	// Branching factor is the number of children nodes
+	// for internal nodes of the tree
+	private int branchingFactor;
+	private int count;
+
+	/**
+	 * Public constructor
+	 * 
+	 * @param branchingFactor
+	 */
+	public DoubleBPTree(int branchingFactor) {
+		if (branchingFactor <= 2) {
+			throw new IllegalArgumentException("Illegal branching factor: " + branchingFactor);
+		}
+		this.branchingFactor = branchingFactor;
+		root = new LeafNode();
+	}
+
+	/**
+	 * Inserts the key and value, after any entries with an equal key
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public void insert(double key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException();
+		}
+		checkKey(key);
+		root.insert(key, value);
+		if (root.isOverflow()) {
+			Node left = root;
+			Node sibling = left.split();
+			InternalNode newRoot = new InternalNode();
+			newRoot.keys[0] = sibling.getFirstLeafKey();
+			newRoot.keyNumber = 1;
+			newRoot.children[0] = left;
+			newRoot.children[1] = sibling;
+			root = newRoot;
+		}
+		count++;
+	}
+
+	/**
+	 * Returns the value of the first entry with the given key
+	 * 
+	 * @param key
+	 * @return value, or null if the key is not found
+	 */
+	public V get(double key) {
+		checkKey(key);
+		LeafNode leaf = seekLeaf(key, true);
+		int index = leaf.lowerBound(key);
+		if (index == leaf.keyNumber && leaf.next != null) {
+			leaf = leaf.next;
+			index = 0;
+		}
+		return index < leaf.keyNumber && leaf.keys[index] == key ? leaf.value(index) : null;
+	}
+
+	/**
+	 * Returns the values whose keys compare to the given key as the comparator
+	 * says, in key order.
+	 * 
+	 * @see BPTree#rangeSearch(Comparable, String)
+	 * 
+	 * @param key
+	 * @param comparator one of ">=", "<=" or "=="
+	 * @return list of values
+	 */
+	public List<V> rangeSearch(double key, String comparator) {
+		checkKey(key);
+		List<V> result = new ArrayList<V>();
+		if (comparator.equals("<=")) {
+			LeafNode leaf = seekLeaf(key, false);
+			int index = leaf.upperBound(key) - 1;
+			while (leaf != null) {
+				for (; index >= 0; index--) {
+					result.add(leaf.value(index));
+				}
+				leaf = leaf.previous;
+				if (leaf != null) {
+					index = leaf.keyNumber - 1;
+				}
+			}
+			Collections.reverse(result);
+		} else if (comparator.equals(">=")) {
+			addRange(result, key, true, false, 0, false);
+		} else if (comparator.equals("==")) {
+			addRange(result, key, true, true, key, true);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the values whose keys lie between the two bounds, in key order.
+	 * 
+	 * @see BPTree#rangeSearch(Comparable, boolean, Comparable, boolean)
+	 * 
+	 * @param lo          lower bound of the keys
+	 * @param loInclusive true if keys equal to lo are included
+	 * @param hi          upper bound of the keys
+	 * @param hiInclusive true if keys equal to hi are included
+	 * @return list of values
+	 */
+	public List<V> rangeSearch(double lo, boolean loInclusive, double hi, boolean hiInclusive) {
+		checkKey(lo);
+		checkKey(hi);
+		List<V> result = new ArrayList<V>();
+		addRange(result, lo, loInclusive, true, hi, hiInclusive);
+		return result;
+	}
+
+	/**
+	 * Returns the number of entries in the tree
+	 * 
+	 * @return number of entries
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Rejects NaN, which every primitive comparison treats as neither smaller nor
+	 * greater than a key
+	 * 
+	 * @param key
+	 */
+	private void checkKey(double key) {
+		if (Double.isNaN(key)) {
+			throw new IllegalArgumentException("Illegal key: " + key);
+		}
+	}
+
+	/**
+	 * Seeks to the lower bound and adds values along the next links until a key
+	 * passes the upper bound.
+	 * 
+	 * @param result      list the values are added to
+	 * @param lo          lower bound of the keys
+	 * @param loInclusive true if keys equal to lo are included
+	 * @param bounded     false if there is no upper bound
+	 * @param hi          upper bound of the keys
+	 * @param hiInclusive true if keys equal to hi are included
+	 */
+	private void addRange(List<V> result, double lo, boolean loInclusive, boolean bounded, double hi, boolean hiInclusive) {
+		LeafNode leaf = seekLeaf(lo, loInclusive);
+		int index = loInclusive ? leaf.lowerBound(lo) : leaf.upperBound(lo);
+		while (leaf != null) {
+			for (; index < leaf.keyNumber; index++) {
+				double key = leaf.keys[index];
+				if (bounded && (key > hi || (key == hi && !hiInclusive))) {
+					return;
+				}
+				result.add(leaf.value(index));
+			}
+			leaf = leaf.next;
+			index = 0;
+		}
+	}
+
+	/**
+	 * Descends from the root to the leaf where a scan from the given key starts.
+	 * 
+	 * @param key
+	 * @param inclusive true to seek to the first key equal to or greater than the
+	 *                  key, false to seek past the keys equal to it
+	 * @return LeafNode
+	 */
+	private LeafNode seekLeaf(double key, boolean inclusive) {
+		Node node = root;
+		while (node instanceof DoubleBPTree.InternalNode) {
+			InternalNode internal = (InternalNode) node;
+			node = internal.children[inclusive ? internal.lowerBound(key) : internal.upperBound(key)];
+		}
+		return (LeafNode) node;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		Queue<Node> queue = new LinkedList<Node>();
+		queue.add(root);
+		StringBuilder sb = new StringBuilder();
+		while (!queue.isEmpty()) {
+			Queue<Node> nextQueue = new LinkedList<Node>();
+			sb.append('{');
+			while (!queue.isEmpty()) {
+				Node node = queue.remove();
+				sb.append(node.toString());
+				if (!queue.isEmpty())
+					sb.append(", ");
+				if (node instanceof DoubleBPTree.InternalNode) {
+					InternalNode internal = (InternalNode) node;
+					for (int i = 0; i <= internal.keyNumber; i++) {
+						nextQueue.add(internal.children[i]);
+					}
+				}
+			}
+			sb.append("}\n");
+			queue = nextQueue;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * This abstract class represents any type of node in the tree. The keys are
+	 * held in a double[] with an explicit length.
+	 */
+	private abstract class Node {
+
+		// Keys, of which the first keyNumber are in use
+		double[] keys;
+		int keyNumber;
+
+		/**
+		 * Gets the position of the first key that is greater than or equal to the
+		 * given key, or keyNumber if every key is smaller
+		 * 
+		 * @param key
+		 * @return index
+		 */
+		int lowerBound(double key) {
+			int low = 0;
+			int high = keyNumber;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (keys[mid] < key) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Gets the position of the first key that is strictly greater than the given
+		 * key, or keyNumber if no key is greater
+		 * 
+		 * @param key
+		 * @return index
+		 */
+		int upperBound(double key) {
+			int low = 0;
+			int high = keyNumber;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (keys[mid] <= key) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Inserts key and value in the appropriate leaf node and splits the nodes
+		 * below this one that overflow
+		 * 
+		 * @param key
+		 * @param value
+		 */
+		abstract void insert(double key, V value);
+
+		/**
+		 * Gets the first leaf key of the subtree
+		 * 
+		 * @return key
+		 */
+		abstract double getFirstLeafKey();
+
+		/**
+		 * Gets the new sibling created after splitting the node
+		 * 
+		 * @return Node
+		 */
+		abstract Node split();
+
+		/**
+		 * 
+		 * @return boolean
+		 */
+		abstract boolean isOverflow();
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder("[");
+			for (int i = 0; i < keyNumber; i++) {
+				if (i > 0)
+					sb.append(", ");
+				sb.append(keys[i]);
+			}
+			return sb.append(']').toString();
+		}
+
+	} // End of abstract class Node
+
+	/**
+	 * This class represents an internal node of the tree. It holds one more child
+	 * than keys, and room for a single extra child before it is split.
+	 */
+	private class InternalNode extends Node {
+
+		// Children nodes, of which the first keyNumber + 1 are in use
+		Node[] children;
+
+		/**
+		 * Package constructor
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		InternalNode() {
+			keys = new double[branchingFactor];
+			children = (Node[]) new DoubleBPTree.Node[branchingFactor + 1];
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see DoubleBPTree.Node#getFirstLeafKey()
+		 */
+		double getFirstLeafKey() {
+			return children[0].getFirstLeafKey();
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see DoubleBPTree.Node#isOverflow()
+		 */
+		boolean isOverflow() {
+			return keyNumber + 1 > branchingFactor;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see DoubleBPTree.Node#insert(double, Object)
+		 */
+		void insert(double key, V value) {
+			int index = upperBound(key);
+			Node child = children[index];
+			child.insert(key, value);
+			if (child.isOverflow()) {
+				Node sibling = child.split();
+				System.arraycopy(keys, index, keys, index + 1, keyNumber - index);
+				System.arraycopy(children, index + 1, children, index + 2, keyNumber - index);
+				keys[index] = sibling.getFirstLeafKey();
+				children[index + 1] = sibling;
+				keyNumber++;
+			}
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see DoubleBPTree.Node#split()
+		 */
+		Node split() {
+			int start = keyNumber / 2 + 1;
+			InternalNode sibling = new InternalNode();
+			sibling.keyNumber = keyNumber - start;
+			System.arraycopy(keys, start, sibling.keys, 0, sibling.keyNumber);
+			System.arraycopy(children, start, sibling.children, 0, sibling.keyNumber + 1);
+			for (int i = start; i <= keyNumber; i++) {
+				children[i] = null;
+			}
+			keyNumber = start - 1;
+			return sibling;
+		}
+
+	} // End of class InternalNode
+
+	/**
+	 * This class represents a leaf node of the tree. It has room for a single
+	 * extra entry before it is split.
+	 */
+	private class LeafNode extends Node {
+
+		// Values, of which the first keyNumber are in use
+		Object[] values;
+
+		// Reference to the next leaf node
+		LeafNode next;
+
+		// Reference to the previous leaf node
+		LeafNode previous;
+
+		/**
+		 * Package constructor
+		 */
+		LeafNode() {
+			keys = new double[branchingFactor + 1];
+			values = new Object[branchingFactor + 1];
+		}
+
+		/**
+		 * Gets the value at the given position
+		 * 
+		 * @param index
+		 * @return value
+		 */
+		@SuppressWarnings("unchecked")
+		V value(int index) {
+			return (V) values[index];
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see DoubleBPTree.Node#getFirstLeafKey()
+		 */
+		double getFirstLeafKey() {
+			return keys[0];
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see DoubleBPTree.Node#isOverflow()
+		 */
+		boolean isOverflow() {
+			return keyNumber > branchingFactor;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see DoubleBPTree.Node#insert(double, Object)
+		 */
+		void insert(double key, V value) {
+			// equal keys go after the existing ones to keep them in insertion order
+			int index = upperBound(key);
+			System.arraycopy(keys, index, keys, index + 1, keyNumber - index);
+			System.arraycopy(values, index, values, index + 1, keyNumber - index);
+			keys[index] = key;
+			values[index] = value;
+			keyNumber++;
+		}
+
+		/**
+		 * (non-Javadoc)
+		 * 
+		 * @see DoubleBPTree.Node#split()
+		 */
+		Node split() {
+			LeafNode sibling = new LeafNode();
+			int from = (keyNumber + 1) / 2;
+			sibling.keyNumber = keyNumber - from;
+			System.arraycopy(keys, from, sibling.keys, 0, sibling.keyNumber);
+			System.arraycopy(values, from, sibling.values, 0, sibling.keyNumber);
+			for (int i = from; i < keyNumber; i++) {
+				values[i] = null;
+			}
+			keyNumber = from;
+			sibling.previous = this;
+			sibling.next = next;
+			if (next != null) {
+				next.previous = sibling;
+			}
+			next = sibling;
+			return sibling;
+		}
+
+	} // End of class LeafNode
+
+} // End of class DoubleBPTree
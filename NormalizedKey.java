@@ -0,0 +1,237 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Key normalized into an order-preserving sequence of bytes. Keys of any type
+ * (String, numbers, or a composite of several columns) are encoded so that
+ * comparing the bytes as unsigned values gives the order of the original keys.
+ * A BPTree of NormalizedKey therefore has a single comparison path for every
+ * index: compareTo is one final method over Arrays.compareUnsigned, which the
+ * JIT inlines and vectorizes, and the bytes can be written to a page as they
+ * are.
+ * 
+ * Numbers are stored big-endian with the sign bit flipped, doubles in the
+ * order of Double.compare. Strings are stored as UTF-8, which orders them by
+ * code point, followed by a 0x00 0x01 terminator so that a shorter string
+ * sorts before its extensions; a 0x00 inside a string is escaped as 0x00 0xFF,
+ * so a terminator is never mistaken for part of a longer string.
+ */
+public final class NormalizedKey implements Comparable<NormalizedKey>, PrefixComparable<NormalizedKey> {
+
+	// Encoded key
+	private final byte[] bytes;
+
+	/**
+	 * Package constructor
+	 * 
+	 * @param bytes
+	 */
+	NormalizedKey(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Normalizes a String key
+	 * 
+	 * @param key
+	 * @return NormalizedKey
+	 */
+	public static NormalizedKey of(String key) {
+		return builder().add(key).build();
+	}
+
+	/**
+	 * Normalizes a long key
+	 * 
+	 * @param key
+	 * @return NormalizedKey
+	 */
+	public static NormalizedKey of(long key) {
+		return builder().add(key).build();
+	}
+
+	/**
+	 * Normalizes an int key
+	 * 
+	 * @param key
+	 * @return NormalizedKey
+	 */
+	public static NormalizedKey of(int key) {
+		return builder().add(key).build();
+	}
+
+	/**
+	 * Normalizes a double key
+	 * 
+	 * @param key
+	 * @return NormalizedKey
+	 */
+	public static NormalizedKey of(double key) {
+		return builder().add(key).build();
+	}
+
+	/**
+	 * Gets a builder that concatenates several columns into one key, which sorts
+	 * by the first column, then the second, and so on
+	 * 
+	 * @return Builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Gets a copy of the encoded bytes
+	 * 
+	 * @return bytes
+	 */
+	public byte[] getBytes() {
+		return bytes.clone();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see PrefixComparable#startsWith(java.lang.Object)
+	 */
+	@Override
+	public boolean startsWith(NormalizedKey prefix) {
+		return bytes.length >= prefix.bytes.length
+				&& Arrays.mismatch(bytes, 0, prefix.bytes.length, prefix.bytes, 0, prefix.bytes.length) < 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Comparable#compareTo(java.lang.Object)
+	 */
+	@Override
+	public int compareTo(NormalizedKey other) {
+		return Arrays.compareUnsigned(bytes, other.bytes);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof NormalizedKey && Arrays.equals(bytes, ((NormalizedKey) other).bytes);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(bytes);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * This class builds a normalized key out of one or more columns.
+	 */
+	public static final class Builder {
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		/**
+		 * Package constructor
+		 */
+		Builder() {
+		}
+
+		/**
+		 * Appends a String column
+		 * 
+		 * @param column
+		 * @return this builder
+		 */
+		public Builder add(String column) {
+			if (column == null) {
+				throw new IllegalArgumentException();
+			}
+			for (byte b : column.getBytes(StandardCharsets.UTF_8)) {
+				out.write(b);
+				if (b == 0) {
+					out.write(0xff);
+				}
+			}
+			out.write(0);
+			out.write(1);
+			return this;
+		}
+
+		/**
+		 * Appends a long column
+		 * 
+		 * @param column
+		 * @return this builder
+		 */
+		public Builder add(long column) {
+			long bits = column ^ Long.MIN_VALUE;
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) (bits >>> shift));
+			}
+			return this;
+		}
+
+		/**
+		 * Appends an int column
+		 * 
+		 * @param column
+		 * @return this builder
+		 */
+		public Builder add(int column) {
+			int bits = column ^ Integer.MIN_VALUE;
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				out.write(bits >>> shift);
+			}
+			return this;
+		}
+
+		/**
+		 * Appends a double column, ordered as Double.compare orders them
+		 * 
+		 * @param column
+		 * @return this builder
+		 */
+		public Builder add(double column) {
+			long bits = Double.doubleToLongBits(column);
+			// negative numbers sort in reverse, positive ones after all of them
+			bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) (bits >>> shift));
+			}
+			return this;
+		}
+
+		/**
+		 * Gets the key of the columns appended so far
+		 * 
+		 * @return NormalizedKey
+		 */
+		public NormalizedKey build() {
+			return new NormalizedKey(out.toByteArray());
+		}
+
+	} // End of class Builder
+
+} // End of class NormalizedKey
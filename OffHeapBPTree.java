@@ -0,0 +1,635 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * B+ tree whose nodes live outside the Java heap. Every node is a fixed-size
+ * page inside a direct ByteBuffer arena, keys and values are stored through
+ * fixed-width codecs, and nodes refer to each other by page number. Only the
+ * root page number and the arena chunks are heap objects, so the size of the
+ * index adds nothing to the work of the garbage collector. Searches compare
+ * keys in place in the pages through the codec, without decoding them.
+ * 
+ * The arena counts against the JVM's direct memory limit, which defaults to
+ * the maximum heap size; a large index needs -XX:MaxDirectMemorySize raised to
+ * fit. The memory is returned once the tree is closed and its chunks have been
+ * collected, as the JVM frees direct buffers only when they become unreachable.
+ * 
+ * @param <K> type of the keys, stored through a fixed-width Codec such as
+ *            Codec.LONG, Codec.INT or Codec.DOUBLE
+ * @param <V> type of the values, stored through a fixed-width Codec
+ */
+public class OffHeapBPTree<K extends Comparable<K>, V> {
+
+	// Bytes of an arena chunk, each chunk holds as many whole pages as fit
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	// Page header: type, key count, next and previous leaf
+	private static final int TYPE = 0;
+	private static final int KEY_COUNT = 4;
+	private static final int NEXT = 8;
+	private static final int PREVIOUS = 12;
+	private static final int HEADER = 16;
+
+	private static final int LEAF = 0;
+	private static final int INTERNAL = 1;
+
+	// Page number used for a missing leaf link
+	private static final int NONE = -1;
+
+	private Codec<K> keyCodec;
+	private Codec<V> valueCodec;
+
+	// Branching factor is the number of children nodes
+	// for internal nodes of the tree
+	private int branchingFactor;
+	private int count;
+
+	// Page layout: header, keys, then values in a leaf or children in an
+	// internal node, sized for one key more than the branching factor
+	private int pageSize;
+	private int valuesOffset;
+	private int childrenOffset;
+
+	// Arena of pages
+	private List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private int pagesPerChunk;
+	private int pageCount;
+
+	// Page number of the root
+	private int root;
+
+	// Scratch space for moving entries inside a page
+	private byte[] scratch;
+
+	/**
+	 * Public constructor
+	 * 
+	 * @param branchingFactor
+	 * @param keyCodec        codec of the keys
+	 * @param valueCodec      codec of the values
+	 */
+	public OffHeapBPTree(int branchingFactor, Codec<K> keyCodec, Codec<V> valueCodec) {
+		if (branchingFactor <= 2) {
+			throw new IllegalArgumentException("Illegal branching factor: " + branchingFactor);
+		}
+		this.branchingFactor = branchingFactor;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		int capacity = branchingFactor + 1;
+		valuesOffset = HEADER + capacity * keyCodec.width();
+		childrenOffset = valuesOffset;
+		pageSize = HEADER + capacity * keyCodec.width()
+				+ Math.max(capacity * valueCodec.width(), (capacity + 1) * Integer.BYTES);
+		if (pageSize > CHUNK_SIZE) {
+			throw new IllegalArgumentException("Illegal branching factor: " + branchingFactor);
+		}
+		pagesPerChunk = CHUNK_SIZE / pageSize;
+		scratch = new byte[pageSize];
+		root = allocate(LEAF);
+	}
+
+	/**
+	 * Inserts the key and value, after any entries with an equal key
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public void insert(K key, V value) {
+		if (key == null || value == null) {
+			throw new IllegalArgumentException();
+		}
+		checkOpen();
+		// descend, remembering the path for the splits on the way back up
+		int[] pages = new int[8];
+		int[] slots = new int[8];
+		int depth = 0;
+		int page = root;
+		while (type(page) == INTERNAL) {
+			if (depth == pages.length) {
+				pages = Arrays.copyOf(pages, depth * 2);
+				slots = Arrays.copyOf(slots, depth * 2);
+			}
+			int index = upperBound(page, key);
+			pages[depth] = page;
+			slots[depth++] = index;
+			page = child(page, index);
+		}
+
+		int index = upperBound(page, key);
+		int keys = keyCount(page);
+		move(page, keyOffset(index), keyOffset(index + 1), (keys - index) * keyCodec.width());
+		move(page, valueOffset(index), valueOffset(index + 1), (keys - index) * valueCodec.width());
+		keyCodec.write(buffer(page), base(page) + keyOffset(index), key);
+		valueCodec.write(buffer(page), base(page) + valueOffset(index), value);
+		setKeyCount(page, keys + 1);
+		count++;
+
+		if (keyCount(page) <= branchingFactor) {
+			return;
+		}
+		int sibling = splitLeaf(page);
+		K separator = key(sibling, 0);
+		while (depth > 0) {
+			int parent = pages[--depth];
+			insertChild(parent, slots[depth], separator, sibling);
+			if (keyCount(parent) + 1 <= branchingFactor) {
+				return;
+			}
+			separator = key(parent, keyCount(parent) / 2);
+			sibling = splitInternal(parent);
+			page = parent;
+		}
+		int newRoot = allocate(INTERNAL);
+		setKey(newRoot, 0, separator);
+		setChild(newRoot, 0, page);
+		setChild(newRoot, 1, sibling);
+		setKeyCount(newRoot, 1);
+		root = newRoot;
+	}
+
+	/**
+	 * Returns the value of the first entry with the given key
+	 * 
+	 * @param key
+	 * @return value, or null if the key is not found
+	 */
+	public V get(K key) {
+		checkOpen();
+		int page = seekLeaf(key, true);
+		int index = lowerBound(page, key);
+		if (index == keyCount(page) && link(page, NEXT) != NONE) {
+			page = link(page, NEXT);
+			index = 0;
+		}
+		if (index < keyCount(page) && compareKey(page, index, key) == 0) {
+			return value(page, index);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the values whose keys compare to the given key as the comparator
+	 * says, in key order.
+	 * 
+	 * @see BPTree#rangeSearch(Comparable, String)
+	 * 
+	 * @param key
+	 * @param comparator one of ">=", "<=" or "=="
+	 * @return list of values
+	 */
+	public List<V> rangeSearch(K key, String comparator) {
+		checkOpen();
+		List<V> result = new ArrayList<V>();
+		if (comparator.equals("<=")) {
+			int page = seekLeaf(key, false);
+			int index = upperBound(page, key) - 1;
+			while (page != NONE) {
+				for (; index >= 0; index--) {
+					result.add(value(page, index));
+				}
+				page = link(page, PREVIOUS);
+				if (page != NONE) {
+					index = keyCount(page) - 1;
+				}
+			}
+			Collections.reverse(result);
+		} else if (comparator.equals(">=")) {
+			addRange(result, key, true, null, false);
+		} else if (comparator.equals("==")) {
+			addRange(result, key, true, key, true);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the values whose keys lie between the two bounds, in key order.
+	 * 
+	 * @see BPTree#rangeSearch(Comparable, boolean, Comparable, boolean)
+	 * 
+	 * @param lo          lower bound of the keys
+	 * @param loInclusive true if keys equal to lo are included
+	 * @param hi          upper bound of the keys
+	 * @param hiInclusive true if keys equal to hi are included
+	 * @return list of values
+	 */
+	public List<V> rangeSearch(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		if (lo == null || hi == null) {
+			throw new IllegalArgumentException();
+		}
+		checkOpen();
+		List<V> result = new ArrayList<V>();
+		addRange(result, lo, loInclusive, hi, hiInclusive);
+		return result;
+	}
+
+	/**
+	 * Returns the number of entries in the tree
+	 * 
+	 * @return number of entries
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of bytes held by the arena
+	 * 
+	 * @return bytes of off-heap memory
+	 */
+	public long offHeapBytes() {
+		return chunks == null ? 0 : (long) chunks.size() * pagesPerChunk * pageSize;
+	}
+
+	/**
+	 * Releases the arena. The tree drops its chunks so that they can be
+	 * collected, which is when the JVM returns direct memory, and cannot be used
+	 * afterwards.
+	 */
+	public void close() {
+		chunks = null;
+		count = 0;
+	}
+
+	/**
+	 * Rejects use of a closed tree
+	 */
+	private void checkOpen() {
+		if (chunks == null) {
+			throw new IllegalStateException("Tree is closed");
+		}
+	}
+
+	/**
+	 * Seeks to the lower bound and adds values along the next links until a key
+	 * passes the upper bound.
+	 * 
+	 * @param result      list the values are added to
+	 * @param lo          lower bound of the keys
+	 * @param loInclusive true if keys equal to lo are included
+	 * @param hi          upper bound of the keys, or null for no upper bound
+	 * @param hiInclusive true if keys equal to hi are included
+	 */
+	private void addRange(List<V> result, K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		int page = seekLeaf(lo, loInclusive);
+		int index = loInclusive ? lowerBound(page, lo) : upperBound(page, lo);
+		while (page != NONE) {
+			for (; index < keyCount(page); index++) {
+				if (hi != null) {
+					int cmp = compareKey(page, index, hi);
+					if (cmp > 0 || (cmp == 0 && !hiInclusive)) {
+						return;
+					}
+				}
+				result.add(value(page, index));
+			}
+			page = link(page, NEXT);
+			index = 0;
+		}
+	}
+
+	/**
+	 * Descends from the root to the leaf where a scan from the given key starts.
+	 * 
+	 * @param key
+	 * @param inclusive true to seek to the first key equal to or greater than the
+	 *                  key, false to seek past the keys equal to it
+	 * @return page number of the leaf
+	 */
+	private int seekLeaf(K key, boolean inclusive) {
+		int page = root;
+		while (type(page) == INTERNAL) {
+			page = child(page, inclusive ? lowerBound(page, key) : upperBound(page, key));
+		}
+		return page;
+	}
+
+	/**
+	 * Moves the upper half of an overflowing leaf to a new leaf linked after it
+	 * 
+	 * @param page
+	 * @return page number of the new leaf
+	 */
+	private int splitLeaf(int page) {
+		int keys = keyCount(page);
+		int from = (keys + 1) / 2;
+		int sibling = allocate(LEAF);
+		copy(page, keyOffset(from), sibling, keyOffset(0), (keys - from) * keyCodec.width());
+		copy(page, valueOffset(from), sibling, valueOffset(0), (keys - from) * valueCodec.width());
+		setKeyCount(sibling, keys - from);
+		setKeyCount(page, from);
+
+		int next = link(page, NEXT);
+		setLink(sibling, PREVIOUS, page);
+		setLink(sibling, NEXT, next);
+		if (next != NONE) {
+			setLink(next, PREVIOUS, sibling);
+		}
+		setLink(page, NEXT, sibling);
+		return sibling;
+	}
+
+	/**
+	 * Moves the keys and children after the middle key of an overflowing internal
+	 * node to a new node. The middle key is dropped here, the caller moves it up
+	 * as the separator.
+	 * 
+	 * @param page
+	 * @return page number of the new node
+	 */
+	private int splitInternal(int page) {
+		int keys = keyCount(page);
+		int start = keys / 2 + 1;
+		int sibling = allocate(INTERNAL);
+		copy(page, keyOffset(start), sibling, keyOffset(0), (keys - start) * keyCodec.width());
+		copy(page, childOffset(start), sibling, childOffset(0), (keys - start + 1) * Integer.BYTES);
+		setKeyCount(sibling, keys - start);
+		setKeyCount(page, start - 1);
+		return sibling;
+	}
+
+	/**
+	 * Inserts the sibling split off the child at the given position right after
+	 * it
+	 * 
+	 * @param page      internal node
+	 * @param index     position of the child that was split
+	 * @param separator separator between the child and its new sibling
+	 * @param child     page number of the new sibling
+	 */
+	private void insertChild(int page, int index, K separator, int child) {
+		int keys = keyCount(page);
+		move(page, keyOffset(index), keyOffset(index + 1), (keys - index) * keyCodec.width());
+		move(page, childOffset(index + 1), childOffset(index + 2), (keys - index) * Integer.BYTES);
+		setKey(page, index, separator);
+		setChild(page, index + 1, child);
+		setKeyCount(page, keys + 1);
+	}
+
+	/**
+	 * Gets the position of the first key that is greater than or equal to the
+	 * given key, or the key count if every key is smaller
+	 * 
+	 * @param page
+	 * @param key
+	 * @return index
+	 */
+	private int lowerBound(int page, K key) {
+		int low = 0;
+		int high = keyCount(page);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareKey(page, mid, key) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Gets the position of the first key that is strictly greater than the given
+	 * key, or the key count if no key is greater
+	 * 
+	 * @param page
+	 * @param key
+	 * @return index
+	 */
+	private int upperBound(int page, K key) {
+		int low = 0;
+		int high = keyCount(page);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareKey(page, mid, key) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Allocates a cleared page, adding a chunk to the arena when the last one is
+	 * full
+	 * 
+	 * @param type LEAF or INTERNAL
+	 * @return page number
+	 */
+	private int allocate(int type) {
+		if (pageCount == chunks.size() * pagesPerChunk) {
+			chunks.add(ByteBuffer.allocateDirect(pagesPerChunk * pageSize));
+		}
+		int page = pageCount++;
+		ByteBuffer buffer = buffer(page);
+		int base = base(page);
+		buffer.putInt(base + TYPE, type);
+		buffer.putInt(base + KEY_COUNT, 0);
+		buffer.putInt(base + NEXT, NONE);
+		buffer.putInt(base + PREVIOUS, NONE);
+		return page;
+	}
+
+	private ByteBuffer buffer(int page) {
+		return chunks.get(page / pagesPerChunk);
+	}
+
+	private int base(int page) {
+		return (page % pagesPerChunk) * pageSize;
+	}
+
+	private int type(int page) {
+		return buffer(page).getInt(base(page) + TYPE);
+	}
+
+	private int keyCount(int page) {
+		return buffer(page).getInt(base(page) + KEY_COUNT);
+	}
+
+	private void setKeyCount(int page, int keys) {
+		buffer(page).putInt(base(page) + KEY_COUNT, keys);
+	}
+
+	private int link(int page, int field) {
+		return buffer(page).getInt(base(page) + field);
+	}
+
+	private void setLink(int page, int field, int target) {
+		buffer(page).putInt(base(page) + field, target);
+	}
+
+	private int keyOffset(int index) {
+		return HEADER + index * keyCodec.width();
+	}
+
+	private int valueOffset(int index) {
+		return valuesOffset + index * valueCodec.width();
+	}
+
+	private int childOffset(int index) {
+		return childrenOffset + index * Integer.BYTES;
+	}
+
+	private K key(int page, int index) {
+		return keyCodec.read(buffer(page), base(page) + keyOffset(index));
+	}
+
+	private int compareKey(int page, int index, K key) {
+		return keyCodec.compare(buffer(page), base(page) + keyOffset(index), key);
+	}
+
+	private void setKey(int page, int index, K key) {
+		keyCodec.write(buffer(page), base(page) + keyOffset(index), key);
+	}
+
+	private V value(int page, int index) {
+		return valueCodec.read(buffer(page), base(page) + valueOffset(index));
+	}
+
+	private int child(int page, int index) {
+		return buffer(page).getInt(base(page) + childOffset(index));
+	}
+
+	private void setChild(int page, int index, int child) {
+		buffer(page).putInt(base(page) + childOffset(index), child);
+	}
+
+	/**
+	 * Moves bytes inside a page, the two regions may overlap
+	 * 
+	 * @param page
+	 * @param from   offset in the page of the bytes
+	 * @param to     offset in the page to move them to
+	 * @param length number of bytes
+	 */
+	private void move(int page, int from, int to, int length) {
+		copy(page, from, page, to, length);
+	}
+
+	/**
+	 * Copies bytes from one page to another through the scratch array
+	 * 
+	 * @param page   source page
+	 * @param from   offset in the source page
+	 * @param target target page
+	 * @param to     offset in the target page
+	 * @param length number of bytes
+	 */
+	private void copy(int page, int from, int target, int to, int length) {
+		if (length > 0) {
+			buffer(page).get(base(page) + from, scratch, 0, length);
+			buffer(target).put(base(target) + to, scratch, 0, length);
+		}
+	}
+
+	/**
+	 * This interface converts keys or values to and from a fixed number of bytes
+	 * of a page.
+	 * 
+	 * @param <T> type of the keys or values
+	 */
+	public interface Codec<T> {
+
+		// Codec of Long objects as 8 bytes
+		Codec<Long> LONG = new Codec<Long>() {
+			public int width() {
+				return Long.BYTES;
+			}
+
+			public void write(ByteBuffer buffer, int offset, Long value) {
+				buffer.putLong(offset, value);
+			}
+
+			public Long read(ByteBuffer buffer, int offset) {
+				return buffer.getLong(offset);
+			}
+
+			public int compare(ByteBuffer buffer, int offset, Long key) {
+				return Long.compare(buffer.getLong(offset), key);
+			}
+		};
+
+		// Codec of Integer objects as 4 bytes
+		Codec<Integer> INT = new Codec<Integer>() {
+			public int width() {
+				return Integer.BYTES;
+			}
+
+			public void write(ByteBuffer buffer, int offset, Integer value) {
+				buffer.putInt(offset, value);
+			}
+
+			public Integer read(ByteBuffer buffer, int offset) {
+				return buffer.getInt(offset);
+			}
+
+			public int compare(ByteBuffer buffer, int offset, Integer key) {
+				return Integer.compare(buffer.getInt(offset), key);
+			}
+		};
+
+		// Codec of Double objects as 8 bytes
+		Codec<Double> DOUBLE = new Codec<Double>() {
+			public int width() {
+				return Double.BYTES;
+			}
+
+			public void write(ByteBuffer buffer, int offset, Double value) {
+				buffer.putDouble(offset, value);
+			}
+
+			public Double read(ByteBuffer buffer, int offset) {
+				return buffer.getDouble(offset);
+			}
+
+			public int compare(ByteBuffer buffer, int offset, Double key) {
+				return Double.compare(buffer.getDouble(offset), key);
+			}
+		};
+
+		/**
+		 * Gets the number of bytes of every encoded object
+		 * 
+		 * @return width in bytes
+		 */
+		int width();
+
+		/**
+		 * Encodes the object into the buffer
+		 * 
+		 * @param buffer
+		 * @param offset absolute position in the buffer
+		 * @param value
+		 */
+		void write(ByteBuffer buffer, int offset, T value);
+
+		/**
+		 * Decodes an object from the buffer
+		 * 
+		 * @param buffer
+		 * @param offset absolute position in the buffer
+		 * @return object
+		 */
+		T read(ByteBuffer buffer, int offset);
+
+		/**
+		 * Compares the object encoded in the buffer with the given one, as
+		 * compareTo would. Codecs should compare the bytes in place; this default
+		 * decodes the object first.
+		 * 
+		 * @param buffer
+		 * @param offset absolute position in the buffer
+		 * @param key    object to compare with
+		 * @return comparison result
+		 */
+		@SuppressWarnings("unchecked")
+		default int compare(ByteBuffer buffer, int offset, T key) {
+			return ((Comparable<T>) read(buffer, offset)).compareTo(key);
+		}
+
+	} // End of interface Codec
+
+} // End of class OffHeapBPTree
@@ -0,0 +1,224 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * B+ tree for indexes with many duplicate keys, such as status codes or
+ * categories. Each distinct key is stored once in an underlying BPTree together
+ * with a posting list of its values, instead of once per value. Leaves then
+ * hold distinct keys only, so a skewed index needs far fewer leaves and
+ * separators, and the tree stays shallow.
+ * 
+ * @param <K> type of the keys
+ * @param <V> type of the values, several of which may share a key
+ */
+public class PostingBPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
+
+	// Number of values kept in the inline array of a posting list
+	private static final int INLINE_CAPACITY = 16;
+
+	// Number of values in each overflow page of a posting list
+	private static final int PAGE_CAPACITY = 256;
+
+	// Tree of the distinct keys
+	private BPTree<K, Postings<V>> tree;
+
+	// Number of values over all keys
+	private int count;
+
+	/**
+	 * Public constructor
+	 * 
+	 * @param branchingFactor
+	 */
+	public PostingBPTree(int branchingFactor) {
+		tree = new BPTree<K, Postings<V>>(branchingFactor);
+		// a new key is inserted right after the lookup that missed it
+		tree.setFingerSearch(true);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see BPTreeADT#insert(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public void insert(K key, V value) {
+		if (key == null || value == null) {
+			throw new IllegalArgumentException();
+		}
+		Postings<V> postings = tree.get(key);
+		if (postings == null) {
+			postings = new Postings<V>();
+			tree.insert(key, postings);
+		}
+		postings.add(value);
+		count++;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.String)
+	 */
+	@Override
+	public List<V> rangeSearch(K key, String comparator) {
+		List<V> result = new ArrayList<V>();
+		for (Postings<V> postings : tree.rangeSearch(key, comparator)) {
+			postings.addTo(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the values whose keys lie between the two bounds, in key order.
+	 * 
+	 * @see BPTree#rangeSearch(Comparable, boolean, Comparable, boolean)
+	 * 
+	 * @param lo          lower bound of the keys
+	 * @param loInclusive true if keys equal to lo are included
+	 * @param hi          upper bound of the keys
+	 * @param hiInclusive true if keys equal to hi are included
+	 * @return list of values
+	 */
+	public List<V> rangeSearch(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		List<V> result = new ArrayList<V>();
+		for (Postings<V> postings : tree.rangeSearch(lo, loInclusive, hi, hiInclusive)) {
+			postings.addTo(result);
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see BPTreeADT#get(java.lang.Object)
+	 */
+	@Override
+	public V get(K key) {
+		Postings<V> postings = tree.get(key);
+		return postings == null ? null : postings.first();
+	}
+
+	/**
+	 * Returns the values of all entries with the given key, in insertion order.
+	 * 
+	 * @param key
+	 * @return list of values, empty if the key is not found
+	 */
+	public List<V> getAll(K key) {
+		List<V> result = new ArrayList<V>();
+		Postings<V> postings = tree.get(key);
+		if (postings != null) {
+			postings.addTo(result);
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see BPTreeADT#size()
+	 */
+	@Override
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of distinct keys
+	 * 
+	 * @return number of keys
+	 */
+	public int keyCount() {
+		return tree.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return tree.toString();
+	}
+
+	/**
+	 * This class is the posting list of a key. The first values are kept in a
+	 * small inline array that grows as needed; once that is full further values
+	 * spill into fixed-size overflow pages, so a very long list is never copied
+	 * as a whole to grow it.
+	 * 
+	 * @param <V> value
+	 */
+	private static class Postings<V> {
+
+		// Values that fit in the inline array
+		Object[] values = new Object[1];
+
+		// Pages of the values past the inline array, null until needed
+		List<Object[]> overflow;
+
+		int size;
+
+		/**
+		 * Appends a value to the list
+		 * 
+		 * @param value
+		 */
+		void add(V value) {
+			if (size < INLINE_CAPACITY) {
+				if (size == values.length) {
+					Object[] grown = new Object[Math.min(INLINE_CAPACITY, size * 2)];
+					System.arraycopy(values, 0, grown, 0, size);
+					values = grown;
+				}
+				values[size++] = value;
+				return;
+			}
+			int offset = (size - INLINE_CAPACITY) % PAGE_CAPACITY;
+			if (offset == 0) {
+				if (overflow == null) {
+					overflow = new ArrayList<Object[]>();
+				}
+				overflow.add(new Object[PAGE_CAPACITY]);
+			}
+			overflow.get(overflow.size() - 1)[offset] = value;
+			size++;
+		}
+
+		/**
+		 * Gets the first value of the list
+		 * 
+		 * @return value
+		 */
+		@SuppressWarnings("unchecked")
+		V first() {
+			return (V) values[0];
+		}
+
+		/**
+		 * Appends every value of the list to the result, in insertion order
+		 * 
+		 * @param result
+		 */
+		@SuppressWarnings("unchecked")
+		void addTo(List<V> result) {
+			int inline = Math.min(size, INLINE_CAPACITY);
+			for (int i = 0; i < inline; i++) {
+				result.add((V) values[i]);
+			}
+			int remaining = size - inline;
+			for (int i = 0; remaining > 0; i++) {
+				Object[] page = overflow.get(i);
+				int length = Math.min(remaining, PAGE_CAPACITY);
+				for (int j = 0; j < length; j++) {
+					result.add((V) page[j]);
+				}
+				remaining -= length;
+			}
+		}
+
+	} // End of class Postings
+
+} // End of class PostingBPTree
@@ -0,0 +1,19 @@
+/**
+ * Key made of columns that can be matched on its leading columns. A prefix must
+ * sort before every key that starts with it, and the keys that start with it
+ * must be contiguous in key order, so a scan can seek to the prefix and stop at
+ * the first key that does not start with it.
+ * 
+ * @param <K> type of the key and of its prefixes
+ */
+public interface PrefixComparable<K> {
+
+	/**
+	 * Checks if this key begins with the given prefix
+	 * 
+	 * @param prefix
+	 * @return boolean
+	 */
+	public boolean startsWith(K prefix);
+
+}